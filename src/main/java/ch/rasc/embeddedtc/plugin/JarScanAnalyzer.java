@@ -0,0 +1,466 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.plugin;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Finds the jars in WEB-INF/lib of a WAR that the ContextConfig and TldConfig of
+ * Tomcat scan at startup without finding anything.
+ * <p>
+ * A jar has to be scanned if it contains a web-fragment.xml, static resources in
+ * META-INF/resources, TLDs, a ServletContainerInitializer or a class that is annotated
+ * with WebServlet, WebFilter or WebListener. It also has to be scanned if one of its
+ * classes matches the HandlesTypes of a ServletContainerInitializer in the WAR or in
+ * the executable jar. The class files are read directly, without loading them. A class
+ * whose hierarchy reaches a class outside the WAR, other than a JDK class, is treated
+ * as a match because its super types are unknown.
+ */
+class JarScanAnalyzer {
+
+	private static final String LIB_DIR = "WEB-INF/lib/";
+
+	private static final String CLASSES_DIR = "WEB-INF/classes/";
+
+	private static final String SCI_SERVICE = "META-INF/services/"
+			+ "javax.servlet.ServletContainerInitializer";
+
+	private static final String HANDLES_TYPES = "Ljavax/servlet/annotation/"
+			+ "HandlesTypes;";
+
+	private static final Set<String> WEB_ANNOTATIONS = new HashSet<>(
+			Arrays.asList("Ljavax/servlet/annotation/WebServlet;",
+					"Ljavax/servlet/annotation/WebFilter;",
+					"Ljavax/servlet/annotation/WebListener;"));
+
+	private final Log log;
+
+	/**
+	 * Classes and initializers of the jars that end up on the class path of the
+	 * executable jar
+	 */
+	private final Map<String, ClassInfo> containerClasses = new HashMap<>();
+
+	private final List<String> containerInitializers = new ArrayList<>();
+
+	JarScanAnalyzer(List<File> containerJars, Log log) throws IOException {
+		this.log = log;
+		for (File jar : containerJars) {
+			try (ZipFile zipFile = new ZipFile(jar)) {
+				ZipArchiveEntry service = zipFile.getEntry(SCI_SERVICE);
+				if (service == null) {
+					continue;
+				}
+				List<String> initializers;
+				try (InputStream is = zipFile.getInputStream(service)) {
+					initializers = readServices(is);
+				}
+				for (String initializer : initializers) {
+					ZipArchiveEntry classEntry = zipFile
+							.getEntry(initializer.replace('.', '/') + ".class");
+					if (classEntry != null) {
+						try (InputStream is = zipFile.getInputStream(classEntry)) {
+							ClassInfo info = ClassInfo.read(IOUtils.toByteArray(is));
+							this.containerClasses.put(info.name, info);
+						}
+					}
+					this.containerInitializers.add(initializer.replace('.', '/'));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the file names of the jars in WEB-INF/lib that do not need to be scanned,
+	 * or null if the WAR can not be analyzed.
+	 */
+	List<String> findJarsToSkip(File warFile) throws IOException {
+		Map<String, ClassInfo> classes = new HashMap<>(this.containerClasses);
+		List<String> initializers = new ArrayList<>(this.containerInitializers);
+		Map<String, Boolean> jars = new LinkedHashMap<>();
+
+		try (ZipFile zipFile = new ZipFile(warFile)) {
+			Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+			while (entries.hasMoreElements()) {
+				ZipArchiveEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (entry.isDirectory()) {
+					continue;
+				}
+
+				if (name.startsWith(LIB_DIR) && name.endsWith(".jar")
+						&& name.indexOf('/', LIB_DIR.length()) == -1) {
+					String jarName = name.substring(LIB_DIR.length());
+					try (InputStream is = zipFile.getInputStream(entry)) {
+						jars.put(jarName, readJar(jarName, is, classes, initializers));
+					}
+				}
+				else if (name.startsWith(CLASSES_DIR)) {
+					String path = name.substring(CLASSES_DIR.length());
+					try (InputStream is = zipFile.getInputStream(entry)) {
+						readEntry(null, path, is, classes, initializers);
+					}
+					catch (IOException | RuntimeException e) {
+						this.log.debug("Reading " + name + " failed, all jars of "
+								+ warFile.getName() + " will be scanned");
+						return null;
+					}
+				}
+			}
+		}
+
+		Set<String> handledTypes = new HashSet<>();
+		for (String initializer : initializers) {
+			ClassInfo info = classes.get(initializer);
+			if (info == null) {
+				this.log.debug("ServletContainerInitializer " + initializer
+						+ " not found, all jars of " + warFile.getName()
+						+ " will be scanned");
+				return null;
+			}
+			handledTypes.addAll(info.handlesTypes);
+		}
+
+		for (ClassInfo info : classes.values()) {
+			if (info.jar != null && Boolean.FALSE.equals(jars.get(info.jar))
+					&& isScanned(info, handledTypes, classes)) {
+				jars.put(info.jar, Boolean.TRUE);
+			}
+		}
+
+		List<String> jarsToSkip = new ArrayList<>();
+		for (Map.Entry<String, Boolean> jar : jars.entrySet()) {
+			if (!jar.getValue()) {
+				jarsToSkip.add(jar.getKey());
+			}
+		}
+		Collections.sort(jarsToSkip);
+
+		this.log.info(String.format("%d of %d jars in %s do not need to be scanned",
+				jarsToSkip.size(), jars.size(), warFile.getName()));
+		return jarsToSkip;
+	}
+
+	/**
+	 * Reads the classes and initializers of the jar. Returns true if the jar contains
+	 * files that Tomcat is looking for.
+	 */
+	private static boolean readJar(String jarName, InputStream is,
+			Map<String, ClassInfo> classes, List<String> initializers) {
+		boolean scanned = false;
+		try (ZipArchiveInputStream jar = new ZipArchiveInputStream(is)) {
+			ZipArchiveEntry entry;
+			while ((entry = jar.getNextZipEntry()) != null) {
+				String name = entry.getName();
+				if (name.equals("META-INF/web-fragment.xml")
+						|| name.startsWith("META-INF/resources/")
+						|| name.startsWith("META-INF/") && name.endsWith(".tld")
+						|| name.equals(SCI_SERVICE)) {
+					scanned = true;
+				}
+				if (!entry.isDirectory()) {
+					readEntry(jarName, name, jar, classes, initializers);
+				}
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			// a jar that can not be read is left to Tomcat
+			return true;
+		}
+		return scanned;
+	}
+
+	private static void readEntry(String jarName, String name, InputStream is,
+			Map<String, ClassInfo> classes, List<String> initializers)
+			throws IOException {
+		if (name.endsWith(".class")) {
+			ClassInfo info = ClassInfo.read(IOUtils.toByteArray(is));
+			info.jar = jarName;
+			classes.put(info.name, info);
+		}
+		else if (name.equals(SCI_SERVICE)) {
+			for (String initializer : readServices(is)) {
+				initializers.add(initializer.replace('.', '/'));
+			}
+		}
+	}
+
+	private static boolean isScanned(ClassInfo info, Set<String> handledTypes,
+			Map<String, ClassInfo> classes) {
+		for (String descriptor : info.descriptors) {
+			if (WEB_ANNOTATIONS.contains(descriptor)) {
+				return true;
+			}
+			// annotations are only referenced by descriptor
+			if (descriptor.length() > 2 && handledTypes
+					.contains(descriptor.substring(1, descriptor.length() - 1))) {
+				return true;
+			}
+		}
+		return !handledTypes.isEmpty() && isAssignableTo(info.name, handledTypes,
+				classes, new HashSet<String>());
+	}
+
+	private static boolean isAssignableTo(String name, Set<String> types,
+			Map<String, ClassInfo> classes, Set<String> visited) {
+		if (name == null || !visited.add(name)) {
+			return false;
+		}
+		if (types.contains(name)) {
+			return true;
+		}
+		ClassInfo info = classes.get(name);
+		if (info == null) {
+			// A class of the container, the JDK or a jar outside the WAR. The classes
+			// of the JDK only extend JDK classes, every other class might extend a
+			// handled type.
+			return !name.startsWith("java/") || containsJdkType(types);
+		}
+		if (isAssignableTo(info.superName, types, classes, visited)) {
+			return true;
+		}
+		for (String iface : info.interfaces) {
+			if (isAssignableTo(iface, types, classes, visited)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean containsJdkType(Set<String> types) {
+		for (String type : types) {
+			if (type.startsWith("java/")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<String> readServices(InputStream is) throws IOException {
+		List<String> services = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(is, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int comment = line.indexOf('#');
+			if (comment != -1) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (!line.isEmpty()) {
+				services.add(line);
+			}
+		}
+		return services;
+	}
+
+	/**
+	 * The parts of a class file the analysis needs: name, super class, interfaces, all
+	 * type descriptors of the constant pool and the values of a HandlesTypes annotation.
+	 */
+	private static class ClassInfo {
+		String name;
+
+		String superName;
+
+		final List<String> interfaces = new ArrayList<>();
+
+		final Set<String> descriptors = new HashSet<>();
+
+		final List<String> handlesTypes = new ArrayList<>();
+
+		String jar;
+
+		static ClassInfo read(byte[] bytes) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			if (in.readInt() != 0xCAFEBABE) {
+				throw new IOException("Not a class file");
+			}
+			in.readUnsignedShort();
+			in.readUnsignedShort();
+
+			int count = in.readUnsignedShort();
+			Object[] pool = new Object[count];
+			for (int i = 1; i < count; i++) {
+				int tag = in.readUnsignedByte();
+				switch (tag) {
+				case 1:
+					pool[i] = in.readUTF();
+					break;
+				case 7:
+				case 8:
+				case 16:
+				case 19:
+				case 20:
+					// class, string, method type, module and package point to an utf8
+					pool[i] = Integer.valueOf(in.readUnsignedShort());
+					break;
+				case 15:
+					in.skipBytes(3);
+					break;
+				case 3:
+				case 4:
+				case 9:
+				case 10:
+				case 11:
+				case 12:
+				case 17:
+				case 18:
+					in.skipBytes(4);
+					break;
+				case 5:
+				case 6:
+					in.skipBytes(8);
+					i++;
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+				}
+			}
+
+			ClassInfo info = new ClassInfo();
+			for (Object constant : pool) {
+				if (constant instanceof String) {
+					String utf8 = (String) constant;
+					if (utf8.startsWith("L") && utf8.endsWith(";")) {
+						info.descriptors.add(utf8);
+					}
+				}
+			}
+
+			in.readUnsignedShort();
+			info.name = classAt(pool, in.readUnsignedShort());
+			info.superName = classAt(pool, in.readUnsignedShort());
+			int interfaces = in.readUnsignedShort();
+			for (int i = 0; i < interfaces; i++) {
+				info.interfaces.add(classAt(pool, in.readUnsignedShort()));
+			}
+
+			// fields and methods
+			for (int m = 0; m < 2; m++) {
+				int members = in.readUnsignedShort();
+				for (int i = 0; i < members; i++) {
+					in.skipBytes(6);
+					skipAttributes(in);
+				}
+			}
+
+			int attributes = in.readUnsignedShort();
+			for (int i = 0; i < attributes; i++) {
+				String attributeName = (String) pool[in.readUnsignedShort()];
+				int length = in.readInt();
+				if ("RuntimeVisibleAnnotations".equals(attributeName)) {
+					int annotations = in.readUnsignedShort();
+					for (int a = 0; a < annotations; a++) {
+						readAnnotation(in, pool, info);
+					}
+				}
+				else {
+					in.skipBytes(length);
+				}
+			}
+
+			return info;
+		}
+
+		private static void skipAttributes(DataInputStream in) throws IOException {
+			int attributes = in.readUnsignedShort();
+			for (int i = 0; i < attributes; i++) {
+				in.skipBytes(2);
+				in.skipBytes(in.readInt());
+			}
+		}
+
+		private static void readAnnotation(DataInputStream in, Object[] pool,
+				ClassInfo info) throws IOException {
+			boolean handlesTypes = HANDLES_TYPES.equals(pool[in.readUnsignedShort()]);
+			int pairs = in.readUnsignedShort();
+			for (int i = 0; i < pairs; i++) {
+				in.skipBytes(2);
+				readElementValue(in, pool, handlesTypes ? info : null);
+			}
+		}
+
+		/**
+		 * Reads an element value of an annotation. The class values are added to the
+		 * handled types of the info if it is not null.
+		 */
+		private static void readElementValue(DataInputStream in, Object[] pool,
+				ClassInfo info) throws IOException {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 'e':
+				in.skipBytes(4);
+				break;
+			case 'c':
+				String descriptor = (String) pool[in.readUnsignedShort()];
+				if (info != null && descriptor.startsWith("L")) {
+					info.handlesTypes
+							.add(descriptor.substring(1, descriptor.length() - 1));
+				}
+				break;
+			case '@':
+				in.skipBytes(2);
+				int pairs = in.readUnsignedShort();
+				for (int i = 0; i < pairs; i++) {
+					in.skipBytes(2);
+					readElementValue(in, pool, null);
+				}
+				break;
+			case '[':
+				int values = in.readUnsignedShort();
+				for (int i = 0; i < values; i++) {
+					readElementValue(in, pool, info);
+				}
+				break;
+			default:
+				in.skipBytes(2);
+				break;
+			}
+		}
+
+		private static String classAt(Object[] pool, int index) {
+			if (index == 0) {
+				return null;
+			}
+			return (String) pool[(Integer) pool[index]];
+		}
+	}
+
+}
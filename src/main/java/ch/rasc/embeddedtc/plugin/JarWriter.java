@@ -0,0 +1,512 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.plugin;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.StreamCompressor;
+import org.apache.commons.compress.archivers.zip.X000A_NTFS;
+import org.apache.commons.compress.archivers.zip.X5455_ExtendedTimestamp;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntryPredicate;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipShort;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Writes the entries of the executable jar.
+ * <p>
+ * With more than one thread every entry is compressed on a worker thread into its
+ * own scatter store and the stores are merged into the jar in the order the entries
+ * were added. The resulting jar has the same entries and content in both modes, but
+ * not the same bytes.
+ */
+class JarWriter implements Closeable {
+
+	/**
+	 * Entries bigger than this are compressed into a temporary file instead of memory
+	 */
+	private static final long MEMORY_THRESHOLD = 1024 * 1024;
+
+	private final JarArchiveOutputStream out;
+
+	private final int threads;
+
+	private ExecutorService executor;
+
+	private final Deque<Future<CompressedEntry>> pending = new ArrayDeque<>();
+
+	private static final String SERVICES_DIR = "META-INF/services/";
+
+	private static final ZipShort[] TIME_EXTRA_FIELDS = {
+			new X5455_ExtendedTimestamp().getHeaderId(), new X000A_NTFS().getHeaderId() };
+
+	private final Log log;
+
+	/**
+	 * Every entry that has been written so far, keyed by path
+	 */
+	private final Map<String, IndexEntry> index = new HashMap<>();
+
+	/**
+	 * The merged lines of all service provider files, keyed by path
+	 */
+	private final Map<String, Set<String>> services = new LinkedHashMap<>();
+
+	private int mergedServices;
+
+	private int duplicates;
+
+	private int conflicts;
+
+	/**
+	 * Time of all entries, -1 for the current time and the time of the source entry
+	 */
+	private final long time;
+
+	/**
+	 * Hash over path, CRC and size of the written entries
+	 */
+	private final MessageDigest contentDigest;
+
+	JarWriter(OutputStream os, int threads, long time, Log log) {
+		this.out = new JarArchiveOutputStream(os);
+		this.threads = threads;
+		this.time = time;
+		this.log = log;
+		try {
+			this.contentDigest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	void addFile(String name, Path file) throws IOException {
+		addFile(name, file, false);
+	}
+
+	/**
+	 * Adds the file as STORED entry when store is true. This is meant for files that
+	 * are already compressed, like WARs, that do not get smaller when they are deflated
+	 * again and can be read from the jar without inflating them.
+	 */
+	void addFile(String name, final Path file, boolean store) throws IOException {
+		int method = store ? ZipArchiveEntry.STORED : ZipArchiveEntry.DEFLATED;
+		add(name, Files.size(file), method, new Source() {
+			@Override
+			public InputStream open() throws IOException {
+				return Files.newInputStream(file);
+			}
+		});
+	}
+
+	void addResource(String name, final String resource) throws IOException {
+		add(name, -1, ZipArchiveEntry.DEFLATED, new Source() {
+			@Override
+			public InputStream open() {
+				return JarWriter.class.getResourceAsStream(resource);
+			}
+		});
+	}
+
+	void addBytes(String name, final byte[] content) throws IOException {
+		add(name, content.length, ZipArchiveEntry.DEFLATED, new Source() {
+			@Override
+			public InputStream open() {
+				return new ByteArrayInputStream(content);
+			}
+		});
+	}
+
+	/**
+	 * Copies the entries of the zip file as they are, without inflating and deflating
+	 * them again. Compressed bytes, CRC and sizes are taken over from the source. The
+	 * manifest of the zip file is skipped.
+	 * <p>
+	 * An entry whose path has already been written is dropped. If its CRC or size
+	 * differs from the written one the conflict is reported and the first entry wins.
+	 * Files in META-INF/services are merged and written when the content hash is
+	 * computed or the writer is closed.
+	 */
+	void addRawEntries(ZipFile file, final String source) throws IOException {
+		writePending(0);
+
+		Enumeration<ZipArchiveEntry> entries = file.getEntries();
+		while (entries.hasMoreElements()) {
+			ZipArchiveEntry entry = entries.nextElement();
+			if (isServiceFile(entry)) {
+				collectServices(entry.getName(), file.getInputStream(entry));
+			}
+		}
+
+		file.copyRawEntries(this.out, new ZipArchiveEntryPredicate() {
+			@Override
+			public boolean test(ZipArchiveEntry entry) {
+				String name = entry.getName();
+				if (!"META-INF/MANIFEST.MF".equals(name) && !isServiceFile(entry)
+						&& register(name, entry.getCrc(), entry.getSize(), source)) {
+					if (JarWriter.this.time != -1) {
+						// the JDK takes the time from these extra fields, which turns
+						// into a DOS time that depends on the time zone
+						for (ZipShort header : TIME_EXTRA_FIELDS) {
+							if (entry.getExtraField(header) != null) {
+								entry.removeExtraField(header);
+							}
+						}
+						entry.setTime(JarWriter.this.time);
+					}
+					updateContentDigest(entry);
+					return true;
+				}
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Returns a hash over path, CRC and size of all entries written so far, including
+	 * the merged service files. Can only be called once.
+	 */
+	String getContentHash() throws IOException {
+		writeServices();
+		writePending(0);
+		byte[] digest = this.contentDigest.digest();
+		return String.format("%0" + digest.length * 2 + "x", new BigInteger(1, digest));
+	}
+
+	private void updateContentDigest(ZipArchiveEntry entry) {
+		this.contentDigest.update((entry.getName() + "|" + entry.getCrc() + "|"
+				+ entry.getSize() + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static boolean isServiceFile(ZipArchiveEntry entry) {
+		return !entry.isDirectory() && entry.getName().startsWith(SERVICES_DIR);
+	}
+
+	private void collectServices(String name, InputStream is) throws IOException {
+		Set<String> lines = this.services.get(name);
+		if (lines == null) {
+			lines = new LinkedHashSet<>();
+			this.services.put(name, lines);
+		}
+
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(is, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int comment = line.indexOf('#');
+				if (comment != -1) {
+					line = line.substring(0, comment);
+				}
+				line = line.trim();
+				if (!line.isEmpty()) {
+					lines.add(line);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the entry to the index. Returns false if an entry with the same path already
+	 * exists.
+	 */
+	private boolean register(String name, long crc, long size, String source) {
+		IndexEntry existing = this.index.get(name);
+		if (existing == null) {
+			this.index.put(name, new IndexEntry(crc, size, source));
+			return true;
+		}
+
+		if (!name.endsWith("/")) {
+			if (existing.crc == crc && existing.size == size) {
+				this.duplicates++;
+			}
+			else if (name.startsWith("META-INF/")
+					&& name.indexOf('/', "META-INF/".length()) == -1) {
+				// LICENSE, NOTICE and similar files of the individual jars
+				this.log.debug("Dropping " + name + " from " + source
+						+ ", keeping the one from " + existing.source);
+			}
+			else {
+				this.conflicts++;
+				this.log.warn("Conflicting entry " + name + " in " + source
+						+ ", keeping the one from " + existing.source);
+			}
+		}
+		return false;
+	}
+
+	private void add(String name, long size, int method, Source source)
+			throws IOException {
+		if (!register(name, -1, size, "the project")) {
+			return;
+		}
+
+		JarArchiveEntry entry = new JarArchiveEntry(name);
+		entry.setMethod(method);
+		if (this.time != -1) {
+			entry.setTime(this.time);
+		}
+
+		if (this.threads > 1) {
+			if (this.executor == null) {
+				this.executor = Executors.newFixedThreadPool(this.threads);
+			}
+			this.pending.add(this.executor.submit(new Compressor(entry, size, source)));
+
+			// keep the number of compressed but not yet written entries bounded
+			writePending(this.threads * 2);
+		}
+		else {
+			if (method == ZipArchiveEntry.STORED) {
+				// a STORED entry needs size and CRC before its data is written
+				CRC32 crc = new CRC32();
+				byte[] buffer = new byte[8192];
+				long count = 0;
+				try (InputStream is = source.open()) {
+					int n;
+					while ((n = is.read(buffer)) != -1) {
+						crc.update(buffer, 0, n);
+						count += n;
+					}
+				}
+				entry.setCrc(crc.getValue());
+				entry.setSize(count);
+				entry.setCompressedSize(count);
+			}
+
+			this.out.putArchiveEntry(entry);
+			try (InputStream is = source.open()) {
+				IOUtils.copy(is, this.out);
+			}
+			this.out.closeArchiveEntry();
+			updateContentDigest(entry);
+		}
+	}
+
+	private void writePending(int keep) throws IOException {
+		while (this.pending.size() > keep) {
+			CompressedEntry compressed;
+			try {
+				compressed = this.pending.poll().get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+
+			try (ScatterGatherBackingStore store = compressed.store;
+					InputStream is = store.getInputStream()) {
+				this.out.addRawArchiveEntry(compressed.entry, is);
+			}
+			updateContentDigest(compressed.entry);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			writeServices();
+			writePending(0);
+
+			if (this.duplicates > 0 || this.conflicts > 0 || this.mergedServices > 0) {
+				this.log.info(String.format(
+						"Dropped %d duplicate entries, merged %d service files, "
+								+ "found %d conflicts",
+						this.duplicates, this.mergedServices, this.conflicts));
+			}
+		}
+		finally {
+			if (this.executor != null) {
+				discardPending();
+			}
+			this.out.close();
+		}
+	}
+
+	private void writeServices() throws IOException {
+		for (Map.Entry<String, Set<String>> entry : this.services.entrySet()) {
+			StringBuilder sb = new StringBuilder();
+			for (String line : entry.getValue()) {
+				sb.append(line).append('\n');
+			}
+			addBytes(entry.getKey(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		this.mergedServices += this.services.size();
+		this.services.clear();
+	}
+
+	/**
+	 * Stops the compression of the entries that are not written yet and deletes their
+	 * stores. Only has something to do when writing an entry failed.
+	 */
+	private void discardPending() {
+		List<Runnable> notStarted = this.executor.shutdownNow();
+		for (Future<CompressedEntry> future : this.pending) {
+			if (notStarted.contains(future)) {
+				future.cancel(false);
+				continue;
+			}
+			try {
+				future.get().store.close();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException | IOException e) {
+				// a failed compressor already closed its store
+			}
+		}
+		this.pending.clear();
+	}
+
+	private static class IndexEntry {
+		final long crc;
+
+		final long size;
+
+		final String source;
+
+		IndexEntry(long crc, long size, String source) {
+			this.crc = crc;
+			this.size = size;
+			this.source = source;
+		}
+	}
+
+	private interface Source {
+		InputStream open() throws IOException;
+	}
+
+	private static class CompressedEntry {
+		final ZipArchiveEntry entry;
+
+		final ScatterGatherBackingStore store;
+
+		CompressedEntry(ZipArchiveEntry entry, ScatterGatherBackingStore store) {
+			this.entry = entry;
+			this.store = store;
+		}
+	}
+
+	private static class Compressor implements Callable<CompressedEntry> {
+		private final ZipArchiveEntry entry;
+
+		private final long size;
+
+		private final Source source;
+
+		Compressor(ZipArchiveEntry entry, long size, Source source) {
+			this.entry = entry;
+			this.size = size;
+			this.source = source;
+		}
+
+		@Override
+		public CompressedEntry call() throws IOException {
+			ScatterGatherBackingStore store;
+			if (this.size > MEMORY_THRESHOLD) {
+				store = new FileBasedScatterGatherBackingStore(
+						File.createTempFile("embeddedtc", ".tmp"));
+			}
+			else {
+				store = new MemoryBackingStore();
+			}
+
+			try (StreamCompressor compressor = StreamCompressor.create(store);
+					InputStream is = this.source.open()) {
+				compressor.deflate(is, this.entry.getMethod());
+				store.closeForWriting();
+
+				this.entry.setCrc(compressor.getCrc32());
+				this.entry.setSize(compressor.getBytesRead());
+				this.entry.setCompressedSize(compressor.getBytesWrittenForLastEntry());
+			}
+			catch (IOException | RuntimeException e) {
+				store.close();
+				throw e;
+			}
+
+			return new CompressedEntry(this.entry, store);
+		}
+	}
+
+	private static class MemoryBackingStore implements ScatterGatherBackingStore {
+		private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+		@Override
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(this.bos.toByteArray());
+		}
+
+		@Override
+		public void writeOut(byte[] data, int offset, int length) {
+			this.bos.write(data, offset, length);
+		}
+
+		@Override
+		public void closeForWriting() {
+			// nothing here
+		}
+
+		@Override
+		public void close() {
+			// nothing here
+		}
+	}
+
+}
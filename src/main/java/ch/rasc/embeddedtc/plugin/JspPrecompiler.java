@@ -0,0 +1,225 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntryPredicate;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.jasper.JspC;
+import org.apache.maven.plugin.logging.Log;
+
+import ch.rasc.embeddedtc.runner.DeleteDirectory;
+
+/**
+ * Compiles the JSPs of a WAR into servlet classes with Jasper's JspC.
+ * <p>
+ * The WAR is expanded into a work directory and the JSPs are translated and compiled
+ * there. The new WAR contains the entries of the original WAR, copied without
+ * recompressing them, the compiled classes in WEB-INF/classes and a web.xml that maps
+ * every JSP to its servlet. If the WAR has a web.xml the mappings are merged into it,
+ * otherwise a Servlet 3.1 web.xml that only contains the mappings is added.
+ */
+class JspPrecompiler {
+
+	private static final String WEB_XML = "WEB-INF/web.xml";
+
+	private final Path workDirectory;
+
+	private final Log log;
+
+	JspPrecompiler(Path workDirectory, Log log) {
+		this.workDirectory = workDirectory;
+		this.log = log;
+	}
+
+	/**
+	 * Returns a copy of the WAR with precompiled JSPs. The copy has the same file name
+	 * as the WAR. Returns the WAR itself if it does not contain any JSPs.
+	 */
+	File precompile(File warFile) throws IOException {
+		String name = warFile.getName();
+		String baseName = name.endsWith(".war")
+				? name.substring(0, name.length() - 4) : name;
+		Path webappDir = this.workDirectory.resolve(baseName);
+		Path classesDir = this.workDirectory.resolve(baseName + "-classes");
+		Path fragmentFile = this.workDirectory.resolve(baseName + "-web-fragment.xml");
+		Path precompiledWar = this.workDirectory.resolve(name);
+
+		deleteIfExists(webappDir);
+		deleteIfExists(classesDir);
+		Files.deleteIfExists(fragmentFile);
+		Files.deleteIfExists(precompiledWar);
+		Files.createDirectories(classesDir);
+
+		boolean hasWebXml;
+		try (ZipFile zipFile = new ZipFile(warFile)) {
+			if (!expand(zipFile, webappDir)) {
+				return warFile;
+			}
+			hasWebXml = zipFile.getEntry(WEB_XML) != null;
+		}
+
+		long start = System.nanoTime();
+		JspC jspc = new JspC();
+		jspc.setUriroot(webappDir.toString());
+		jspc.setOutputDir(classesDir.toString());
+		jspc.setCompile(true);
+		jspc.setFailOnError(true);
+		jspc.setWebXmlInclude(fragmentFile.toString());
+		jspc.setAddWebXmlMappings(hasWebXml);
+
+		Thread currentThread = Thread.currentThread();
+		ClassLoader contextClassLoader = currentThread.getContextClassLoader();
+		currentThread.setContextClassLoader(JspC.class.getClassLoader());
+		try {
+			jspc.execute();
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Precompiling the JSPs of " + name + " failed: "
+					+ e.getMessage(), e);
+		}
+		finally {
+			currentThread.setContextClassLoader(contextClassLoader);
+		}
+
+		List<Path> classFiles = collectClassFiles(classesDir);
+
+		try (ZipFile zipFile = new ZipFile(warFile);
+				JarArchiveOutputStream out = new JarArchiveOutputStream(
+						Files.newOutputStream(precompiledWar))) {
+			zipFile.copyRawEntries(out, new ZipArchiveEntryPredicate() {
+				@Override
+				public boolean test(ZipArchiveEntry entry) {
+					return !WEB_XML.equals(entry.getName());
+				}
+			});
+
+			if (hasWebXml) {
+				// JspC merged the mappings into the expanded web.xml
+				addFile(out, WEB_XML, webappDir.resolve(WEB_XML));
+			}
+			else {
+				addWebXml(out, fragmentFile);
+			}
+
+			for (Path classFile : classFiles) {
+				addFile(out, "WEB-INF/classes/"
+						+ classesDir.relativize(classFile).toString().replace('\\', '/'),
+						classFile);
+			}
+		}
+
+		this.log.info(String.format("Precompiled the JSPs of %s into %d classes in %d ms",
+				name, classFiles.size(), (System.nanoTime() - start) / 1000000));
+
+		return precompiledWar.toFile();
+	}
+
+	/**
+	 * Expands the WAR into the directory. Returns false if the WAR contains no JSPs.
+	 */
+	private static boolean expand(ZipFile zipFile, Path dir) throws IOException {
+		boolean hasJsps = false;
+		Path root = dir.toAbsolutePath().normalize();
+		Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+		while (entries.hasMoreElements()) {
+			ZipArchiveEntry entry = entries.nextElement();
+			Path target = root.resolve(entry.getName()).normalize();
+			if (!target.startsWith(root)) {
+				throw new IOException(
+						"Entry " + entry.getName() + " is outside of the WAR");
+			}
+
+			if (entry.isDirectory()) {
+				Files.createDirectories(target);
+			}
+			else {
+				Files.createDirectories(target.getParent());
+				try (InputStream is = zipFile.getInputStream(entry)) {
+					Files.copy(is, target);
+				}
+				String name = entry.getName();
+				hasJsps |= name.endsWith(".jsp") || name.endsWith(".jspx");
+			}
+		}
+		return hasJsps;
+	}
+
+	private static List<Path> collectClassFiles(Path dir) throws IOException {
+		final List<Path> classFiles = new ArrayList<>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (file.getFileName().toString().endsWith(".class")) {
+					classFiles.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(classFiles);
+		return classFiles;
+	}
+
+	private static void addWebXml(JarArchiveOutputStream out, Path fragmentFile)
+			throws IOException {
+		String fragment = new String(Files.readAllBytes(fragmentFile),
+				StandardCharsets.UTF_8);
+		// Servlet 3.1, the version of the bundled Tomcat 8.5
+		String webXml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<web-app xmlns=\"http://xmlns.jcp.org/xml/ns/javaee\"\n"
+				+ "  xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
+				+ "  xsi:schemaLocation=\"http://xmlns.jcp.org/xml/ns/javaee "
+				+ "http://xmlns.jcp.org/xml/ns/javaee/web-app_3_1.xsd\"\n"
+				+ "  version=\"3.1\">\n" + fragment + "</web-app>\n";
+
+		out.putArchiveEntry(new JarArchiveEntry(WEB_XML));
+		out.write(webXml.getBytes(StandardCharsets.UTF_8));
+		out.closeArchiveEntry();
+	}
+
+	private static void addFile(JarArchiveOutputStream out, String name, Path file)
+			throws IOException {
+		out.putArchiveEntry(new JarArchiveEntry(name));
+		try (InputStream is = Files.newInputStream(file)) {
+			IOUtils.copy(is, out);
+		}
+		out.closeArchiveEntry();
+	}
+
+	private static void deleteIfExists(Path dir) throws IOException {
+		if (Files.exists(dir)) {
+			Files.walkFileTree(dir, new DeleteDirectory());
+		}
+	}
+
+}
@@ -15,25 +15,39 @@
  */
 package ch.rasc.embeddedtc.plugin;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.compress.archivers.ArchiveException;
-import org.apache.commons.compress.archivers.ArchiveOutputStream;
-import org.apache.commons.compress.archivers.ArchiveStreamFactory;
-import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.compress.utils.IOUtils;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.model.Dependency;
@@ -57,10 +71,17 @@ import org.eclipse.aether.resolution.ArtifactResolutionException;
 import org.eclipse.aether.resolution.ArtifactResult;
 
 import ch.rasc.embeddedtc.runner.Runner;
+import ch.rasc.embeddedtc.runner.SkippingJarScanner;
 
 @Mojo(name = "package-tcwar", defaultPhase = LifecyclePhase.PACKAGE)
 public class PackageTcWarMojo extends AbstractMojo {
 
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(
+			Arrays.asList("war", "jar", "zip", "gz", "tgz", "bz2", "xz", "7z", "png",
+					"jpg", "jpeg", "gif", "webp", "woff", "woff2", "mp3", "mp4"));
+
+	private static final String RUNTIME_TIMESTAMP_FILENAME = "RUNTIME_TIMESTAMP";
+
 	@Component
 	private MavenProject project;
 
@@ -91,6 +112,14 @@ public class PackageTcWarMojo extends AbstractMojo {
 	@Parameter(required = false)
 	private String includeTcNativeWin64;
 
+	/**
+	 * Path to libtcnative-1.so for 64-bit Linux. The runner extracts the library and
+	 * adds it to the library path, the TLS connectors then use OpenSSL. The APR and
+	 * OpenSSL libraries the file links against have to be installed on the host.
+	 */
+	@Parameter(required = false)
+	private String includeTcNativeLinux64;
+
 	@Parameter(defaultValue = "true", required = true)
 	private boolean includeJSPSupport;
 
@@ -103,234 +132,734 @@ public class PackageTcWarMojo extends AbstractMojo {
 	@Parameter
 	private List<Resource> extraResources;
 
+	/**
+	 * Number of threads that compress the entries of the executable jar. With 1 all
+	 * entries are compressed sequentially on the calling thread.
+	 */
+	@Parameter(defaultValue = "1")
+	private int threads;
+
+	/**
+	 * Skip the packaging when the executable jar exists and none of the inputs changed
+	 * since the last run. The inputs are recorded in ${finalName}.fingerprint in the
+	 * build directory.
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean incremental;
+
+	/**
+	 * Write the WARs and extra resources that are already compressed (war, jar, zip,
+	 * gz, png, jpg, ...) as STORED entries into the executable jar. This saves the
+	 * work of deflating them again during packaging and inflating them during the
+	 * extraction at startup.
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean storeCompressed;
+
+	/**
+	 * Compile the JSPs of the WARs into servlet classes during packaging, so the pages
+	 * do not have to be translated and compiled on the first request. Only used when
+	 * includeJSPSupport is true.
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean precompileJsps;
+
+	/**
+	 * Add the Eclipse JDT compiler to the executable jar. Without it JSPs can not be
+	 * compiled at runtime, which is fine when all JSPs are precompiled. Only used when
+	 * includeJSPSupport is true.
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean includeJspCompiler;
+
+	/**
+	 * Find the jars in WEB-INF/lib of the WARs that contain no web fragments, TLDs,
+	 * static resources or annotated classes. Tomcat skips these jars when it scans the
+	 * WAR at startup.
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean analyzeJars;
+
+	/**
+	 * Timestamp for reproducible output, either in ISO 8601 format
+	 * (2017-11-20T10:15:30Z) or as seconds since the epoch. When set, all entries that
+	 * the plugin writes get this time, the entries of the WARs are sorted and written
+	 * with this time and {@link Runner#TIMESTAMP_FILENAME} contains a hash of the
+	 * content instead of the current time. Two builds with the same inputs then create
+	 * the same executable jar. A value with only one character disables it.
+	 */
+	@Parameter(defaultValue = "${project.build.outputTimestamp}")
+	private String outputTimestamp;
+
+	/**
+	 * Write Tomcat, the extra dependencies and the runner classes into the separate
+	 * jar runtimeFinalName. The executable jar then only contains the WARs and extra
+	 * resources and references the runtime jar in its Class-Path, both jars have to be
+	 * in the same directory. The runtime jar is only rewritten when one of its inputs
+	 * changes, so a new release of the application only has to ship the small
+	 * executable jar.
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean layered;
+
+	/**
+	 * Name of the runtime jar when layered is true
+	 */
+	@Parameter(defaultValue = "embeddedtc-runtime.jar")
+	private String runtimeFinalName;
+
 	@Override
 	public void execute() throws MojoExecutionException {
 
 		Path warExecFile = Paths.get(this.buildDirectory, this.finalName);
+		Path fingerprintFile = Paths.get(this.buildDirectory,
+				this.finalName + ".fingerprint");
+		Path runtimeFile = Paths.get(this.buildDirectory, this.runtimeFinalName);
+		Path runtimeFingerprintFile = Paths.get(this.buildDirectory,
+				this.runtimeFinalName + ".fingerprint");
+
+		long entryTime = parseOutputTimestamp();
+
+		long start = System.nanoTime();
+		List<File> extraWarFiles = resolveArtifacts(this.extraWars);
+		List<File> extraDependencyFiles = resolveArtifacts(this.extraDependencies);
+		long resolved = System.nanoTime();
+
 		try {
+			File projectWarFile = getProjectWarFile();
+			Map<String, Path> extraResourceFiles = collectExtraResources();
+			List<File> includedPluginArtifacts = getIncludedPluginArtifacts();
+
+			String runtimeFingerprint = runtimeFingerprint(includedPluginArtifacts,
+					extraDependencyFiles);
+			String fingerprint = fingerprint(projectWarFile, extraWarFiles,
+					extraResourceFiles, runtimeFingerprint);
+
+			String runtimeTimestamp = null;
+			if (this.layered) {
+				if (this.incremental && isUpToDate(runtimeFile, runtimeFingerprintFile,
+						runtimeFingerprint)) {
+					getLog().info(runtimeFile.getFileName() + " is up to date");
+					runtimeTimestamp = readRuntimeTimestamp(runtimeFile);
+				}
+				else {
+					runtimeTimestamp = writeRuntimeJar(runtimeFile,
+							runtimeFingerprintFile, runtimeFingerprint, entryTime,
+							includedPluginArtifacts, extraDependencyFiles);
+				}
+				fingerprint += outputFingerprintLine(runtimeFile);
+			}
+
+			if (this.incremental
+					&& isUpToDate(warExecFile, fingerprintFile, fingerprint)) {
+				getLog().info(warExecFile.getFileName() + " is up to date");
+				return;
+			}
+
+			Files.deleteIfExists(fingerprintFile);
 			Files.deleteIfExists(warExecFile);
 			Files.createDirectories(warExecFile.getParent());
 
+			if (this.includeJSPSupport && this.precompileJsps) {
+				JspPrecompiler precompiler = new JspPrecompiler(
+						Paths.get(this.buildDirectory, "embeddedtc-jspc"), getLog());
+				if (projectWarFile != null) {
+					projectWarFile = precompiler.precompile(projectWarFile);
+				}
+				List<File> precompiledWarFiles = new ArrayList<>();
+				for (File extraWarFile : extraWarFiles) {
+					precompiledWarFiles.add(precompiler.precompile(extraWarFile));
+				}
+				extraWarFiles = precompiledWarFiles;
+			}
+
+			if (entryTime != -1) {
+				Path reproducibleDir = Paths.get(this.buildDirectory,
+						"embeddedtc-reproducible");
+				Files.createDirectories(reproducibleDir);
+				if (projectWarFile != null) {
+					projectWarFile = normalizeWar(projectWarFile, reproducibleDir,
+							entryTime);
+				}
+				List<File> normalizedWarFiles = new ArrayList<>();
+				for (File extraWarFile : extraWarFiles) {
+					normalizedWarFiles
+							.add(normalizeWar(extraWarFile, reproducibleDir, entryTime));
+				}
+				extraWarFiles = normalizedWarFiles;
+			}
+
 			try (OutputStream os = Files.newOutputStream(warExecFile);
-					ArchiveOutputStream aos = new ArchiveStreamFactory()
-							.createArchiveOutputStream(ArchiveStreamFactory.JAR, os)) {
+					JarWriter writer = new JarWriter(os, this.threads, entryTime,
+							getLog())) {
 
+				List<File> warFiles = new ArrayList<>();
 				// If project is a war project add the war to the project
-				if ("war".equalsIgnoreCase(this.project.getPackaging())) {
-					File projectArtifact = this.project.getArtifact().getFile();
-					if (projectArtifact != null
-							&& Files.exists(projectArtifact.toPath())) {
-						aos.putArchiveEntry(
-								new JarArchiveEntry(projectArtifact.getName()));
-						try (InputStream is = Files
-								.newInputStream(projectArtifact.toPath())) {
-							IOUtils.copy(is, aos);
-						}
-						aos.closeArchiveEntry();
-					}
+				if (projectWarFile != null) {
+					warFiles.add(projectWarFile);
 				}
+				warFiles.addAll(extraWarFiles);
 
-				// Add extraWars into the jar
-				if (this.extraWars != null) {
-					for (Dependency extraWarDependency : this.extraWars) {
-						ArtifactRequest request = new ArtifactRequest();
-						request.setArtifact(
-								new DefaultArtifact(extraWarDependency.getGroupId(),
-										extraWarDependency.getArtifactId(),
-										extraWarDependency.getType(),
-										extraWarDependency.getVersion()));
-						request.setRepositories(this.projectRepos);
-						ArtifactResult result;
-						try {
-							result = this.repoSystem.resolveArtifact(this.repoSession,
-									request);
-						}
-						catch (ArtifactResolutionException e) {
-							throw new MojoExecutionException(e.getMessage(), e);
-						}
-
-						File extraWarFile = result.getArtifact().getFile();
-						aos.putArchiveEntry(new JarArchiveEntry(extraWarFile.getName()));
-						try (InputStream is = Files
-								.newInputStream(extraWarFile.toPath())) {
-							IOUtils.copy(is, aos);
-						}
-						aos.closeArchiveEntry();
-
-					}
+				for (File warFile : warFiles) {
+					writer.addFile(warFile.getName(), warFile.toPath(),
+							this.storeCompressed);
 				}
 
 				// Add extraResources into the jar. Folder /extra
-				if (this.extraResources != null) {
-					for (Resource extraResource : this.extraResources) {
-						DirectoryScanner directoryScanner = new DirectoryScanner();
-						directoryScanner.setBasedir(extraResource.getDirectory());
-
-						directoryScanner.setExcludes(extraResource.getExcludes()
-								.toArray(new String[extraResource.getExcludes().size()]));
-
-						if (!extraResource.getIncludes().isEmpty()) {
-							directoryScanner.setIncludes(extraResource.getIncludes()
-									.toArray(new String[extraResource.getIncludes()
-											.size()]));
-						}
-						else {
-							// include everything by default
-							directoryScanner.setIncludes(new String[] { "**" });
-						}
-
-						directoryScanner.scan();
-						for (String includeFile : directoryScanner.getIncludedFiles()) {
-							aos.putArchiveEntry(new JarArchiveEntry(
-									Runner.EXTRA_RESOURCES_DIR + "/" + includeFile));
-
-							Path extraFile = Paths.get(extraResource.getDirectory(),
-									includeFile);
-							try (InputStream is = Files.newInputStream(extraFile)) {
-								IOUtils.copy(is, aos);
-							}
-							aos.closeArchiveEntry();
-						}
-
-					}
+				for (Map.Entry<String, Path> entry : extraResourceFiles.entrySet()) {
+					writer.addFile(entry.getKey(), entry.getValue(),
+							this.storeCompressed && isCompressed(entry.getKey()));
 				}
 
-				Set<String> includeArtifacts = new HashSet<>();
-				includeArtifacts.add("org.apache.tomcat:tomcat-jdbc");
-				includeArtifacts.add("org.apache.tomcat.embed:tomcat-embed-core");
-				includeArtifacts.add("org.apache.tomcat.embed:tomcat-embed-websocket");
-				includeArtifacts.add("org.apache.tomcat.embed:tomcat-embed-logging-juli");
-				includeArtifacts.add("org.yaml:snakeyaml");
-				includeArtifacts.add("com.beust:jcommander");
-
-				if (this.includeJSPSupport) {
-					includeArtifacts.add("org.apache.tomcat.embed:tomcat-embed-jasper");
-					includeArtifacts.add("org.apache.tomcat.embed:tomcat-embed-el");
-					includeArtifacts.add("org.eclipse.jdt.core.compiler:ecj");
-				}
+				addEntryHashes(writer, warFiles, extraResourceFiles);
 
-				for (Artifact pluginArtifact : this.pluginArtifacts) {
-					String artifactName = pluginArtifact.getGroupId() + ":"
-							+ pluginArtifact.getArtifactId();
-					if (includeArtifacts.contains(artifactName)) {
-						try (JarFile jarFile = new JarFile(pluginArtifact.getFile())) {
-							extractJarToArchive(jarFile, aos);
-						}
-					}
+				if (this.analyzeJars) {
+					List<File> containerJars = new ArrayList<>(includedPluginArtifacts);
+					containerJars.addAll(extraDependencyFiles);
+					addJarsToSkip(writer, warFiles, containerJars);
 				}
 
-				if (this.extraDependencies != null) {
-					for (Dependency dependency : this.extraDependencies) {
-
-						ArtifactRequest request = new ArtifactRequest();
-						request.setArtifact(new DefaultArtifact(dependency.getGroupId(),
-								dependency.getArtifactId(), dependency.getType(),
-								dependency.getVersion()));
-						request.setRepositories(this.projectRepos);
-						ArtifactResult result;
-						try {
-							result = this.repoSystem.resolveArtifact(this.repoSession,
-									request);
-						}
-						catch (ArtifactResolutionException e) {
-							throw new MojoExecutionException(e.getMessage(), e);
-						}
-
-						try (JarFile jarFile = new JarFile(
-								result.getArtifact().getFile())) {
-							extractJarToArchive(jarFile, aos);
-						}
-					}
+				String classPath = null;
+				if (this.layered) {
+					classPath = this.runtimeFinalName;
 				}
+				else {
+					addRuntimeEntries(writer, includedPluginArtifacts,
+							extraDependencyFiles);
+				}
+
+				writer.addBytes("META-INF/MANIFEST.MF", createManifest(classPath));
 
-				if (this.includeJSPSupport) {
-					addFile(aos, "/conf/web.xml", "conf/web.xml");
+				String timestamp;
+				if (entryTime != -1) {
+					timestamp = writer.getContentHash();
 				}
 				else {
-					addFile(aos, "/conf/web_wo_jsp.xml", "conf/web.xml");
+					timestamp = String.valueOf(System.currentTimeMillis());
 				}
-				addFile(aos, "/conf/logging.properties", "conf/logging.properties");
+				if (runtimeTimestamp != null) {
+					// a new runtime has to be extracted too
+					timestamp += "-" + runtimeTimestamp;
+				}
+				writer.addBytes(Runner.TIMESTAMP_FILENAME,
+						timestamp.getBytes(StandardCharsets.UTF_8));
 
-				if (this.includeTcNativeWin32 != null) {
-					aos.putArchiveEntry(new JarArchiveEntry("tcnative-1.dll.32"));
-					Files.copy(Paths.get(this.includeTcNativeWin32), aos);
-					aos.closeArchiveEntry();
+			}
+
+			String outputFingerprint = fingerprint + outputFingerprintLine(warExecFile);
+			Files.write(fingerprintFile,
+					outputFingerprint.getBytes(StandardCharsets.UTF_8));
+		}
+		catch (IOException | ManifestException e) {
+			throw new MojoExecutionException(e.getMessage(), e);
+		}
+
+		getLog().info(String.format("Resolved %d artifacts in %d ms, wrote %s in %d ms",
+				extraWarFiles.size() + extraDependencyFiles.size(),
+				TimeUnit.NANOSECONDS.toMillis(resolved - start),
+				warExecFile.getFileName(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - resolved)));
+	}
+
+	/**
+	 * Writes the runtime jar of the layered output and returns its timestamp
+	 */
+	private String writeRuntimeJar(Path runtimeFile, Path runtimeFingerprintFile,
+			String runtimeFingerprint, long entryTime, List<File> includedPluginArtifacts,
+			List<File> extraDependencyFiles) throws IOException, ManifestException {
+		Files.deleteIfExists(runtimeFingerprintFile);
+		Files.deleteIfExists(runtimeFile);
+		Files.createDirectories(runtimeFile.getParent());
+
+		String timestamp;
+		try (OutputStream os = Files.newOutputStream(runtimeFile);
+				JarWriter writer = new JarWriter(os, this.threads, entryTime,
+						getLog())) {
+			addRuntimeEntries(writer, includedPluginArtifacts, extraDependencyFiles);
+			writer.addBytes("META-INF/MANIFEST.MF", createManifest(null));
+
+			if (entryTime != -1) {
+				timestamp = writer.getContentHash();
+			}
+			else {
+				timestamp = String.valueOf(System.currentTimeMillis());
+			}
+			writer.addBytes(RUNTIME_TIMESTAMP_FILENAME,
+					timestamp.getBytes(StandardCharsets.UTF_8));
+		}
+
+		String outputFingerprint = runtimeFingerprint
+				+ outputFingerprintLine(runtimeFile);
+		Files.write(runtimeFingerprintFile,
+				outputFingerprint.getBytes(StandardCharsets.UTF_8));
+		return timestamp;
+	}
+
+	private static String readRuntimeTimestamp(Path runtimeFile) throws IOException {
+		try (ZipFile zipFile = new ZipFile(runtimeFile.toFile())) {
+			ZipArchiveEntry entry = zipFile.getEntry(RUNTIME_TIMESTAMP_FILENAME);
+			if (entry == null) {
+				throw new IOException(
+						runtimeFile + " does not contain " + RUNTIME_TIMESTAMP_FILENAME);
+			}
+			try (InputStream is = zipFile.getInputStream(entry)) {
+				return new String(IOUtils.toByteArray(is), StandardCharsets.UTF_8);
+			}
+		}
+	}
+
+	/**
+	 * Adds Tomcat, the extra dependencies, the default configuration, the native
+	 * libraries and the runner classes
+	 */
+	private void addRuntimeEntries(JarWriter writer, List<File> includedPluginArtifacts,
+			List<File> extraDependencyFiles) throws IOException {
+		for (File pluginArtifactFile : includedPluginArtifacts) {
+			try (ZipFile zipFile = new ZipFile(pluginArtifactFile)) {
+				writer.addRawEntries(zipFile, pluginArtifactFile.getName());
+			}
+		}
+
+		for (File extraDependencyFile : extraDependencyFiles) {
+			try (ZipFile zipFile = new ZipFile(extraDependencyFile)) {
+				writer.addRawEntries(zipFile, extraDependencyFile.getName());
+			}
+		}
+
+		if (this.includeJSPSupport) {
+			writer.addResource("conf/web.xml", "/conf/web.xml");
+		}
+		else {
+			writer.addResource("conf/web.xml", "/conf/web_wo_jsp.xml");
+		}
+		writer.addResource("conf/logging.properties", "/conf/logging.properties");
+
+		if (this.includeTcNativeWin32 != null) {
+			writer.addFile("tcnative-1.dll.32", Paths.get(this.includeTcNativeWin32));
+		}
+
+		if (this.includeTcNativeWin64 != null) {
+			writer.addFile("tcnative-1.dll.64", Paths.get(this.includeTcNativeWin64));
+		}
+
+		if (this.includeTcNativeLinux64 != null) {
+			writer.addFile("libtcnative-1.so.64", Paths.get(this.includeTcNativeLinux64));
+		}
+
+		String[] runnerClasses = {
+				"ch.rasc.embeddedtc.runner.CheckConfig$CheckConfigOptions",
+				"ch.rasc.embeddedtc.runner.CheckConfig",
+				"ch.rasc.embeddedtc.runner.Config",
+				"ch.rasc.embeddedtc.runner.Shutdown",
+				"ch.rasc.embeddedtc.runner.Context",
+				"ch.rasc.embeddedtc.runner.DeleteDirectory",
+				"ch.rasc.embeddedtc.runner.JarExtractor$CopyTask",
+				"ch.rasc.embeddedtc.runner.JarExtractor$ExpandTask",
+				"ch.rasc.embeddedtc.runner.JarExtractor",
+				"ch.rasc.embeddedtc.runner.LazyContextValve$ContextFactory",
+				"ch.rasc.embeddedtc.runner.LazyContextValve$LazyContext",
+				"ch.rasc.embeddedtc.runner.LazyContextValve$Activation",
+				"ch.rasc.embeddedtc.runner.LazyContextValve",
+				"ch.rasc.embeddedtc.runner.ObfuscateUtil$ObfuscateOptions",
+				"ch.rasc.embeddedtc.runner.ObfuscateUtil",
+				"ch.rasc.embeddedtc.runner.Runner$1",
+				"ch.rasc.embeddedtc.runner.Runner$StartOptions",
+				"ch.rasc.embeddedtc.runner.Runner$StopOptions",
+				"ch.rasc.embeddedtc.runner.Runner$WebappFactory",
+				"ch.rasc.embeddedtc.runner.Runner$StopOnFailure",
+				"ch.rasc.embeddedtc.runner.Runner$DisableSessionPersistence",
+				"ch.rasc.embeddedtc.runner.Runner$DeleteDirectoriesThread",
+				"ch.rasc.embeddedtc.runner.Runner$RunnerShutdownHook",
+				"ch.rasc.embeddedtc.runner.SharedWarCache",
+				"ch.rasc.embeddedtc.runner.StartupTimer$ContextTimer",
+				"ch.rasc.embeddedtc.runner.StartupTimer",
+				"ch.rasc.embeddedtc.runner.SkippingJarScanner$SkippingJarScanFilter",
+				"ch.rasc.embeddedtc.runner.SkippingJarScanner",
+				"ch.rasc.embeddedtc.runner.Warmup",
+				"ch.rasc.embeddedtc.runner.WarmupClient$Worker",
+				"ch.rasc.embeddedtc.runner.WarmupClient",
+				"ch.rasc.embeddedtc.runner.VirtualThreadExecutor",
+				"ch.rasc.embeddedtc.runner.Autoscaling",
+				"ch.rasc.embeddedtc.runner.AutoscalingExecutor$TimedTask",
+				"ch.rasc.embeddedtc.runner.AutoscalingExecutor$Controller",
+				"ch.rasc.embeddedtc.runner.AutoscalingExecutor",
+				"ch.rasc.embeddedtc.runner.Runner" };
+
+		for (String rc : runnerClasses) {
+			String classAsPath = rc.replace('.', '/') + ".class";
+			writer.addResource(classAsPath, "/" + classAsPath);
+		}
+	}
+
+	/**
+	 * Adds a hash for every WAR and extra resource. The runner compares the hashes with
+	 * the ones of the last extraction and only extracts the entries that changed.
+	 */
+	private static void addEntryHashes(JarWriter writer, List<File> warFiles,
+			Map<String, Path> extraResourceFiles) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (File warFile : warFiles) {
+			sb.append(SkippingJarScanner.hash(warFile.toPath())).append(' ')
+					.append(warFile.getName()).append('\n');
+		}
+
+		for (Map.Entry<String, Path> entry : extraResourceFiles.entrySet()) {
+			MessageDigest md = newSha1();
+			try (InputStream is = Files.newInputStream(entry.getValue())) {
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = is.read(buf)) > 0) {
+					md.update(buf, 0, n);
 				}
+			}
+			sb.append(toHex(md.digest())).append(' ').append(entry.getKey())
+					.append('\n');
+		}
+
+		writer.addBytes(Runner.ENTRY_HASHES_FILENAME,
+				sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
 
-				if (this.includeTcNativeWin64 != null) {
-					aos.putArchiveEntry(new JarArchiveEntry("tcnative-1.dll.64"));
-					Files.copy(Paths.get(this.includeTcNativeWin64), aos);
-					aos.closeArchiveEntry();
+	private void addJarsToSkip(JarWriter writer, List<File> warFiles,
+			List<File> containerJars) throws IOException {
+		JarScanAnalyzer analyzer = new JarScanAnalyzer(containerJars, getLog());
+		for (File warFile : warFiles) {
+			List<String> jarsToSkip = analyzer.findJarsToSkip(warFile);
+			if (jarsToSkip != null) {
+				StringBuilder sb = new StringBuilder();
+				sb.append(SkippingJarScanner.hash(warFile.toPath())).append('\n');
+				for (String jar : jarsToSkip) {
+					sb.append(jar).append('\n');
 				}
+				writer.addBytes(SkippingJarScanner.getEntryName(warFile.getName()),
+						sb.toString().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
 
-				String[] runnerClasses = {
-						"ch.rasc.embeddedtc.runner.CheckConfig$CheckConfigOptions",
-						"ch.rasc.embeddedtc.runner.CheckConfig",
-						"ch.rasc.embeddedtc.runner.Config",
-						"ch.rasc.embeddedtc.runner.Shutdown",
-						"ch.rasc.embeddedtc.runner.Context",
-						"ch.rasc.embeddedtc.runner.DeleteDirectory",
-						"ch.rasc.embeddedtc.runner.ObfuscateUtil$ObfuscateOptions",
-						"ch.rasc.embeddedtc.runner.ObfuscateUtil",
-						"ch.rasc.embeddedtc.runner.Runner$1",
-						"ch.rasc.embeddedtc.runner.Runner$2",
-						"ch.rasc.embeddedtc.runner.Runner$StartOptions",
-						"ch.rasc.embeddedtc.runner.Runner$StopOptions",
-						"ch.rasc.embeddedtc.runner.Runner$RunnerShutdownHook",
-						"ch.rasc.embeddedtc.runner.Runner" };
-
-				for (String rc : runnerClasses) {
-					String classAsPath = rc.replace('.', '/') + ".class";
-
-					try (InputStream is = getClass()
-							.getResourceAsStream("/" + classAsPath)) {
-						aos.putArchiveEntry(new JarArchiveEntry(classAsPath));
-						IOUtils.copy(is, aos);
-						aos.closeArchiveEntry();
-					}
+	private static byte[] createManifest(String classPath)
+			throws IOException, ManifestException {
+		Manifest manifest = new Manifest();
+
+		Manifest.Attribute mainClassAtt = new Manifest.Attribute();
+		mainClassAtt.setName("Main-Class");
+		mainClassAtt.setValue(Runner.class.getName());
+		manifest.addConfiguredAttribute(mainClassAtt);
+
+		// snakeyaml reads the bean properties of the config with java.beans, needed on
+		// Java 17 and later. Java 8 ignores the attribute.
+		Manifest.Attribute addOpensAtt = new Manifest.Attribute();
+		addOpensAtt.setName("Add-Opens");
+		addOpensAtt.setValue("java.desktop/java.beans");
+		manifest.addConfiguredAttribute(addOpensAtt);
+
+		if (classPath != null) {
+			Manifest.Attribute classPathAtt = new Manifest.Attribute();
+			classPathAtt.setName("Class-Path");
+			classPathAtt.setValue(classPath);
+			manifest.addConfiguredAttribute(classPathAtt);
+		}
+
+		ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+		manifest.write(manifestBytes);
+		return manifestBytes.toByteArray();
+	}
+
+	/**
+	 * Returns the time for the entries in milliseconds, adjusted so that the local
+	 * DOS time in the zip file shows the configured UTC time on every machine. Returns
+	 * -1 if no outputTimestamp is configured.
+	 */
+	private long parseOutputTimestamp() throws MojoExecutionException {
+		// a single character, e.g. the "1" of the parent POMs, disables reproducible
+		// output like in maven-archiver
+		if (this.outputTimestamp == null || this.outputTimestamp.trim().length() < 2) {
+			return -1;
+		}
+
+		long time;
+		String value = this.outputTimestamp.trim();
+		try {
+			if (value.matches("\\d+")) {
+				time = Long.parseLong(value) * 1000;
+			}
+			else {
+				time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.ENGLISH)
+						.parse(value).getTime();
+			}
+		}
+		catch (ParseException | NumberFormatException e) {
+			throw new MojoExecutionException(
+					"Invalid outputTimestamp: " + this.outputTimestamp, e);
+		}
+		return time - TimeZone.getDefault().getOffset(time);
+	}
+
+	/**
+	 * Writes a copy of the WAR with entries sorted by name and all times set to the
+	 * entry time. The entries are copied without recompressing them.
+	 */
+	private static File normalizeWar(File warFile, Path dir, long entryTime)
+			throws IOException {
+		Path normalizedWar = dir.resolve(warFile.getName());
+		try (ZipFile zipFile = new ZipFile(warFile);
+				JarArchiveOutputStream out = new JarArchiveOutputStream(
+						Files.newOutputStream(normalizedWar))) {
+			List<ZipArchiveEntry> entries = Collections.list(zipFile.getEntries());
+			Collections.sort(entries, new Comparator<ZipArchiveEntry>() {
+				@Override
+				public int compare(ZipArchiveEntry e1, ZipArchiveEntry e2) {
+					return e1.getName().compareTo(e2.getName());
 				}
+			});
+
+			for (ZipArchiveEntry entry : entries) {
+				ZipArchiveEntry copy = new ZipArchiveEntry(entry.getName());
+				copy.setMethod(entry.getMethod());
+				copy.setCrc(entry.getCrc());
+				copy.setSize(entry.getSize());
+				copy.setCompressedSize(entry.getCompressedSize());
+				copy.setTime(entryTime);
+				try (InputStream is = zipFile.getRawInputStream(entry)) {
+					out.addRawArchiveEntry(copy, is);
+				}
+			}
+		}
+		return normalizedWar.toFile();
+	}
 
-				Manifest manifest = new Manifest();
+	private static boolean isCompressed(String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot != -1) {
+			return COMPRESSED_EXTENSIONS
+					.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+		}
+		return false;
+	}
 
-				Manifest.Attribute mainClassAtt = new Manifest.Attribute();
-				mainClassAtt.setName("Main-Class");
-				mainClassAtt.setValue(Runner.class.getName());
-				manifest.addConfiguredAttribute(mainClassAtt);
+	private File getProjectWarFile() {
+		if ("war".equalsIgnoreCase(this.project.getPackaging())) {
+			File projectArtifact = this.project.getArtifact().getFile();
+			if (projectArtifact != null && Files.exists(projectArtifact.toPath())) {
+				return projectArtifact;
+			}
+		}
+		return null;
+	}
 
-				aos.putArchiveEntry(new JarArchiveEntry("META-INF/MANIFEST.MF"));
-				manifest.write(aos);
-				aos.closeArchiveEntry();
+	/**
+	 * Returns the files of all extraResources. The keys are the names of the entries in
+	 * the executable jar.
+	 */
+	private Map<String, Path> collectExtraResources() {
+		Map<String, Path> files = new LinkedHashMap<>();
+		if (this.extraResources != null) {
+			for (Resource extraResource : this.extraResources) {
+				DirectoryScanner directoryScanner = new DirectoryScanner();
+				directoryScanner.setBasedir(extraResource.getDirectory());
+
+				directoryScanner.setExcludes(extraResource.getExcludes()
+						.toArray(new String[extraResource.getExcludes().size()]));
+
+				if (!extraResource.getIncludes().isEmpty()) {
+					directoryScanner.setIncludes(extraResource.getIncludes()
+							.toArray(new String[extraResource.getIncludes().size()]));
+				}
+				else {
+					// include everything by default
+					directoryScanner.setIncludes(new String[] { "**" });
+				}
 
-				aos.putArchiveEntry(new JarArchiveEntry(Runner.TIMESTAMP_FILENAME));
-				aos.write(String.valueOf(System.currentTimeMillis())
-						.getBytes(StandardCharsets.UTF_8));
-				aos.closeArchiveEntry();
+				directoryScanner.scan();
+				String[] includedFiles = directoryScanner.getIncludedFiles();
+				Arrays.sort(includedFiles);
+				for (String includeFile : includedFiles) {
+					files.put(Runner.EXTRA_RESOURCES_DIR + "/" + includeFile,
+							Paths.get(extraResource.getDirectory(), includeFile));
+				}
+			}
+		}
+		return files;
+	}
 
+	private List<File> getIncludedPluginArtifacts() {
+		Set<String> includeArtifacts = new HashSet<>();
+		includeArtifacts.add("org.apache.tomcat:tomcat-jdbc");
+		includeArtifacts.add("org.apache.tomcat.embed:tomcat-embed-core");
+		includeArtifacts.add("org.apache.tomcat.embed:tomcat-embed-websocket");
+		includeArtifacts.add("org.apache.tomcat:tomcat-annotations-api");
+		includeArtifacts.add("org.yaml:snakeyaml");
+		includeArtifacts.add("com.beust:jcommander");
+
+		if (this.includeJSPSupport) {
+			includeArtifacts.add("org.apache.tomcat.embed:tomcat-embed-jasper");
+			includeArtifacts.add("org.apache.tomcat.embed:tomcat-embed-el");
+			if (this.includeJspCompiler) {
+				includeArtifacts.add("org.eclipse.jdt:ecj");
 			}
 		}
-		catch (IOException | ArchiveException | ManifestException e) {
-			throw new MojoExecutionException(e.getMessage(), e);
+
+		// sorted by name, the order of the plugin artifacts is not stable
+		Map<String, File> files = new TreeMap<>();
+		for (Artifact pluginArtifact : this.pluginArtifacts) {
+			String artifactName = pluginArtifact.getGroupId() + ":"
+					+ pluginArtifact.getArtifactId();
+			if (includeArtifacts.contains(artifactName)) {
+				files.put(artifactName, pluginArtifact.getFile());
+			}
 		}
+		return new ArrayList<>(files.values());
 	}
 
-	private void addFile(ArchiveOutputStream aos, String from, String to)
+	/**
+	 * Describes every input of the executable jar, the runtime part is described by
+	 * {@link #runtimeFingerprint(List, List)}. Zip files are described by the names and
+	 * CRCs of their entries, because the war plugin rewrites the project WAR with new
+	 * timestamps on every run. Other files are described by size and modification time.
+	 */
+	private String fingerprint(File projectWarFile, List<File> extraWarFiles,
+			Map<String, Path> extraResourceFiles, String runtimeFingerprint)
 			throws IOException {
-		aos.putArchiveEntry(new JarArchiveEntry(to));
-		IOUtils.copy(getClass().getResourceAsStream(from), aos);
-		aos.closeArchiveEntry();
+		StringBuilder sb = new StringBuilder(runtimeFingerprint);
+		sb.append("storeCompressed=").append(this.storeCompressed).append('\n');
+		sb.append("precompileJsps=").append(this.precompileJsps).append('\n');
+		sb.append("analyzeJars=").append(this.analyzeJars).append('\n');
+		sb.append("layered=").append(this.layered).append('\n');
+		sb.append("runtimeFinalName=").append(this.runtimeFinalName).append('\n');
+		if (projectWarFile != null) {
+			sb.append(fingerprintLine("war", projectWarFile));
+		}
+		for (File file : extraWarFiles) {
+			sb.append(fingerprintLine("extraWar", file));
+		}
+		for (Map.Entry<String, Path> entry : extraResourceFiles.entrySet()) {
+			sb.append(fingerprintLine(entry.getKey(), entry.getValue().toFile()));
+		}
+		return sb.toString();
 	}
 
-	private static void extractJarToArchive(JarFile file, ArchiveOutputStream aos)
-			throws IOException {
-		Enumeration<? extends JarEntry> entries = file.entries();
-		while (entries.hasMoreElements()) {
-			JarEntry j = entries.nextElement();
-			if (!"META-INF/MANIFEST.MF".equals(j.getName())) {
-				aos.putArchiveEntry(new JarArchiveEntry(j.getName()));
-				IOUtils.copy(file.getInputStream(j), aos);
-				aos.closeArchiveEntry();
+	/**
+	 * Describes the inputs of the runtime: Tomcat, the extra dependencies, the native
+	 * libraries and the plugin itself that provides the runner classes.
+	 */
+	private String runtimeFingerprint(List<File> includedPluginArtifacts,
+			List<File> extraDependencyFiles) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("includeJSPSupport=").append(this.includeJSPSupport).append('\n');
+		sb.append("outputTimestamp=").append(this.outputTimestamp).append('\n');
+		sb.append(fingerprintLine("plugin", getPluginLocation()));
+		for (File file : includedPluginArtifacts) {
+			sb.append(fingerprintLine("pluginArtifact", file));
+		}
+		for (File file : extraDependencyFiles) {
+			sb.append(fingerprintLine("extraDependency", file));
+		}
+		if (this.includeTcNativeWin32 != null) {
+			sb.append(fingerprintLine("tcNativeWin32",
+					new File(this.includeTcNativeWin32)));
+		}
+		if (this.includeTcNativeWin64 != null) {
+			sb.append(fingerprintLine("tcNativeWin64",
+					new File(this.includeTcNativeWin64)));
+		}
+		if (this.includeTcNativeLinux64 != null) {
+			sb.append(fingerprintLine("tcNativeLinux64",
+					new File(this.includeTcNativeLinux64)));
+		}
+		return sb.toString();
+	}
+
+	private static String fingerprintLine(String key, File file) throws IOException {
+		String name = file.getName();
+		if (file.isFile() && (name.endsWith(".war") || name.endsWith(".jar"))) {
+			MessageDigest md = newSha1();
+			try (ZipFile zipFile = new ZipFile(file)) {
+				Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+				while (entries.hasMoreElements()) {
+					ZipArchiveEntry entry = entries.nextElement();
+					md.update((entry.getName() + "|" + entry.getCrc() + "|"
+							+ entry.getSize() + "\n").getBytes(StandardCharsets.UTF_8));
+				}
 			}
+			return key + "=" + file.getAbsolutePath() + "|" + toHex(md.digest()) + "\n";
+		}
+
+		return key + "=" + file.getAbsolutePath() + "|" + file.length() + "|"
+				+ file.lastModified() + "\n";
+	}
+
+	private static MessageDigest newSha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		return String.format("%0" + bytes.length * 2 + "x", new BigInteger(1, bytes));
+	}
+
+	private static File getPluginLocation() throws IOException {
+		try {
+			return new File(PackageTcWarMojo.class.getProtectionDomain().getCodeSource()
+					.getLocation().toURI());
+		}
+		catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static boolean isUpToDate(Path warExecFile, Path fingerprintFile,
+			String fingerprint) throws IOException {
+		if (!Files.exists(warExecFile) || !Files.exists(fingerprintFile)) {
+			return false;
+		}
+		String lastFingerprint = new String(Files.readAllBytes(fingerprintFile),
+				StandardCharsets.UTF_8);
+		return lastFingerprint.equals(fingerprint + outputFingerprintLine(warExecFile));
+	}
+
+	private static String outputFingerprintLine(Path warExecFile) throws IOException {
+		return "output=" + Files.size(warExecFile) + "|"
+				+ Files.getLastModifiedTime(warExecFile).toMillis() + "\n";
+	}
+
+	/**
+	 * Resolves all dependencies in one batch. The repository connector downloads the
+	 * missing artifacts of a batch concurrently. The returned files are in the same
+	 * order as the dependencies.
+	 */
+	private List<File> resolveArtifacts(List<Dependency> dependencies)
+			throws MojoExecutionException {
+		if (dependencies == null || dependencies.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		List<ArtifactRequest> requests = new ArrayList<>();
+		for (Dependency dependency : dependencies) {
+			ArtifactRequest request = new ArtifactRequest();
+			request.setArtifact(new DefaultArtifact(dependency.getGroupId(),
+					dependency.getArtifactId(), dependency.getType(),
+					dependency.getVersion()));
+			request.setRepositories(this.projectRepos);
+			requests.add(request);
+		}
+
+		List<ArtifactResult> results;
+		try {
+			results = this.repoSystem.resolveArtifacts(this.repoSession, requests);
+		}
+		catch (ArtifactResolutionException e) {
+			throw new MojoExecutionException(e.getMessage(), e);
+		}
+
+		List<File> files = new ArrayList<>();
+		for (ArtifactResult result : results) {
+			files.add(result.getArtifact().getFile());
 		}
+		return files;
 	}
 
-}
\ No newline at end of file
+}
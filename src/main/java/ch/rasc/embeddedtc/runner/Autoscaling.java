@@ -0,0 +1,84 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+public class Autoscaling {
+	private int minThreads = 10;
+
+	private int maxThreads = 400;
+
+	private int step = 10;
+
+	private int targetQueueWait = 20;
+
+	private int interval = 5;
+
+	/**
+	 * Lower bound of maxThreads, not lower than the minSpareThreads of the executor
+	 */
+	public int getMinThreads() {
+		return this.minThreads;
+	}
+
+	public void setMinThreads(int minThreads) {
+		this.minThreads = minThreads;
+	}
+
+	/**
+	 * Upper bound of maxThreads
+	 */
+	public int getMaxThreads() {
+		return this.maxThreads;
+	}
+
+	public void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+	}
+
+	/**
+	 * Number of threads maxThreads is changed by in one resize
+	 */
+	public int getStep() {
+		return this.step;
+	}
+
+	public void setStep(int step) {
+		this.step = step;
+	}
+
+	/**
+	 * Milliseconds a request may wait in the queue on average before the pool grows
+	 */
+	public int getTargetQueueWait() {
+		return this.targetQueueWait;
+	}
+
+	public void setTargetQueueWait(int targetQueueWait) {
+		this.targetQueueWait = targetQueueWait;
+	}
+
+	/**
+	 * Seconds between two samples
+	 */
+	public int getInterval() {
+		return this.interval;
+	}
+
+	public void setInterval(int interval) {
+		this.interval = interval;
+	}
+
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.core.StandardThreadExecutor;
+
+/**
+ * Thread pool that resizes its maxThreads within the bounds of the autoscaling
+ * configuration.
+ * <p>
+ * Every task records the time it waited in the queue. A controller thread samples the
+ * wait times and the number of active threads every interval. The pool grows by one
+ * step when the average wait time is above the target. It shrinks by one step when
+ * requests did not wait longer than the target and the peak of active threads stayed
+ * below the smaller size. Every resize is logged, the samples and the resizes are
+ * available as attributes of the executor MBean.
+ */
+public class AutoscalingExecutor extends StandardThreadExecutor {
+
+	private final Autoscaling autoscaling;
+
+	private final AtomicLong queueWaitNanos = new AtomicLong();
+
+	private final AtomicLong queueWaitMaxNanos = new AtomicLong();
+
+	private final AtomicLong startedTasks = new AtomicLong();
+
+	private final AtomicInteger runningTasks = new AtomicInteger();
+
+	private final AtomicInteger peakRunningTasks = new AtomicInteger();
+
+	private volatile double queueWaitAverage;
+
+	private volatile double queueWaitMax;
+
+	private volatile int peakActiveCount;
+
+	private volatile long resizeCount;
+
+	private volatile String lastResize;
+
+	private Controller controller;
+
+	public AutoscalingExecutor(Autoscaling autoscaling) {
+		this.autoscaling = autoscaling;
+	}
+
+	public Autoscaling getAutoscaling() {
+		return this.autoscaling;
+	}
+
+	@Override
+	protected void startInternal() throws LifecycleException {
+		super.startInternal();
+		this.controller = new Controller(this);
+		this.controller.start();
+	}
+
+	@Override
+	protected void stopInternal() throws LifecycleException {
+		if (this.controller != null) {
+			this.controller.interrupt();
+			this.controller = null;
+		}
+		super.stopInternal();
+	}
+
+	// the connectors only call this method, not the variant with a timeout
+	@Override
+	public void execute(Runnable command) {
+		super.execute(new TimedTask(this, command));
+	}
+
+	void taskStarted(long waitNanos) {
+		this.queueWaitNanos.addAndGet(waitNanos);
+		this.startedTasks.incrementAndGet();
+		updateMax(this.queueWaitMaxNanos, waitNanos);
+		updateMax(this.peakRunningTasks, this.runningTasks.incrementAndGet());
+	}
+
+	void taskFinished() {
+		this.runningTasks.decrementAndGet();
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	private static void updateMax(AtomicInteger max, int value) {
+		int current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Takes a sample of the wait times since the last call and resizes the pool
+	 */
+	void adjust() {
+		long tasks = this.startedTasks.getAndSet(0);
+		long waitNanos = this.queueWaitNanos.getAndSet(0);
+		long maxWaitNanos = this.queueWaitMaxNanos.getAndSet(0);
+		int peak = this.peakRunningTasks.getAndSet(this.runningTasks.get());
+
+		this.queueWaitAverage = tasks > 0 ? toMillis(waitNanos / tasks) : 0;
+		this.queueWaitMax = toMillis(maxWaitNanos);
+		this.peakActiveCount = peak;
+
+		int current = getMaxThreads();
+		int lowerBound = Math.max(this.autoscaling.getMinThreads(), getMinSpareThreads());
+		int upperBound = Math.max(this.autoscaling.getMaxThreads(), lowerBound);
+		int step = Math.max(1, this.autoscaling.getStep());
+		int target = this.autoscaling.getTargetQueueWait();
+
+		int size = current;
+		if (this.queueWaitAverage > target) {
+			size = Math.min(current + step, upperBound);
+		}
+		else if (this.queueWaitMax <= target && peak < current - step) {
+			size = Math.max(current - step, lowerBound);
+		}
+		size = Math.max(Math.min(size, upperBound), lowerBound);
+
+		if (size != current) {
+			setMaxThreads(size);
+			this.resizeCount++;
+			this.lastResize = String.format(Locale.ENGLISH,
+					"maxThreads %d -> %d (queue wait avg %.1f ms, max %.1f ms, "
+							+ "peak active %d, requests %d)",
+					current, size, this.queueWaitAverage, this.queueWaitMax, peak, tasks);
+			Runner.getLogger().info("Executor " + getName() + ": " + this.lastResize);
+		}
+	}
+
+	private static double toMillis(long nanos) {
+		return Math.round(nanos / 100000.0) / 10.0;
+	}
+
+	/**
+	 * Average milliseconds the requests waited in the queue in the last interval
+	 */
+	public double getQueueWaitAverage() {
+		return this.queueWaitAverage;
+	}
+
+	/**
+	 * Longest milliseconds a request waited in the queue in the last interval
+	 */
+	public double getQueueWaitMax() {
+		return this.queueWaitMax;
+	}
+
+	/**
+	 * Highest number of threads that ran a request at the same time in the last
+	 * interval
+	 */
+	public int getPeakActiveCount() {
+		return this.peakActiveCount;
+	}
+
+	public long getResizeCount() {
+		return this.resizeCount;
+	}
+
+	public String getLastResize() {
+		return this.lastResize;
+	}
+
+	private static class TimedTask implements Runnable {
+		private final AutoscalingExecutor executor;
+
+		private final Runnable task;
+
+		private final long submitted = System.nanoTime();
+
+		TimedTask(AutoscalingExecutor executor, Runnable task) {
+			this.executor = executor;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			this.executor.taskStarted(System.nanoTime() - this.submitted);
+			try {
+				this.task.run();
+			}
+			finally {
+				this.executor.taskFinished();
+			}
+		}
+	}
+
+	private static class Controller extends Thread {
+		private final AutoscalingExecutor executor;
+
+		Controller(AutoscalingExecutor executor) {
+			super(executor.getName() + "-autoscaling");
+			this.executor = executor;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long interval = TimeUnit.SECONDS
+					.toMillis(Math.max(1, this.executor.getAutoscaling().getInterval()));
+			try {
+				while (!isInterrupted()) {
+					Thread.sleep(interval);
+					try {
+						this.executor.adjust();
+					}
+					catch (RuntimeException e) {
+						Runner.getLogger().warn("Resizing the executor "
+								+ this.executor.getName() + " failed", e);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				// executor stopped
+			}
+		}
+	}
+
+}
@@ -19,21 +19,35 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.catalina.Executor;
 import org.apache.catalina.Valve;
 import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.coyote.http2.Http2Protocol;
 import org.apache.tomcat.util.IntrospectionUtils;
 
 public class Config {
 
 	private String extractDirectory = "tc";
 
+	private int extractionThreads = Runtime.getRuntime().availableProcessors();
+
+	private boolean expandWarsFromJar = false;
+
+	private String sharedCacheDirectory;
+
+	private int startStopThreads = 1;
+
 	private Shutdown shutdown;
 
+	private Warmup warmup;
+
 	private boolean silent = false;
 
 	private boolean useShutdownHook = false;
@@ -53,6 +67,8 @@ public class Config {
 
 	private List<Map<String, Object>> connectors = Collections.emptyList();
 
+	private List<Map<String, Object>> executors = Collections.emptyList();
+
 	private Context context;
 
 	private List<Context> contexts = Collections.emptyList();
@@ -95,6 +111,10 @@ public class Config {
 		this.connectors = connectors;
 	}
 
+	public void setExecutors(List<Map<String, Object>> executors) {
+		this.executors = executors;
+	}
+
 	public void setConnector(Map<String, Object> connector) {
 		this.connector = connector;
 	}
@@ -136,6 +156,38 @@ public class Config {
 		this.systemProperties = systemProperties;
 	}
 
+	public int getExtractionThreads() {
+		return this.extractionThreads;
+	}
+
+	public void setExtractionThreads(int extractionThreads) {
+		this.extractionThreads = extractionThreads;
+	}
+
+	public boolean isExpandWarsFromJar() {
+		return this.expandWarsFromJar;
+	}
+
+	public void setExpandWarsFromJar(boolean expandWarsFromJar) {
+		this.expandWarsFromJar = expandWarsFromJar;
+	}
+
+	public String getSharedCacheDirectory() {
+		return this.sharedCacheDirectory;
+	}
+
+	public void setSharedCacheDirectory(String sharedCacheDirectory) {
+		this.sharedCacheDirectory = sharedCacheDirectory;
+	}
+
+	public int getStartStopThreads() {
+		return this.startStopThreads;
+	}
+
+	public void setStartStopThreads(int startStopThreads) {
+		this.startStopThreads = startStopThreads;
+	}
+
 	public String getExtractDirectory() {
 		return this.extractDirectory;
 	}
@@ -144,6 +196,14 @@ public class Config {
 		this.extractDirectory = extractDirectory;
 	}
 
+	public Warmup getWarmup() {
+		return this.warmup;
+	}
+
+	public void setWarmup(Warmup warmup) {
+		this.warmup = warmup;
+	}
+
 	public Shutdown getShutdown() {
 		return this.shutdown;
 	}
@@ -166,7 +226,89 @@ public class Config {
 
 	private static final String CONNECTOR_URIENCODING = "URIEncoding";
 
+	private static final String CONNECTOR_EXECUTOR = "executor";
+
+	private static final String CONNECTOR_HTTP2 = "http2";
+
+	private static final String EXECUTOR_NAME = "name";
+
+	private static final String EXECUTOR_VIRTUAL_THREADS = "virtualThreads";
+
+	private static final String EXECUTOR_AUTOSCALING = "autoscaling";
+
+	/**
+	 * Creates the shared thread pools. The connectors reference a pool with its name in
+	 * the executor property. An executor with virtualThreads: true runs every request on
+	 * a virtual thread if the JVM supports them. An executor with an autoscaling section
+	 * resizes its maxThreads at runtime.
+	 */
+	public List<Executor> createExecutorObjects() {
+		List<Executor> exObjects = new ArrayList<>();
+
+		for (Map<String, Object> ex : this.executors) {
+			replaceVariables(ex);
+
+			Object name = ex.get(EXECUTOR_NAME);
+			if (name == null) {
+				Runner.getLogger().warn("Missing name option in executor configuration");
+				continue;
+			}
+
+			boolean virtualThreads = Boolean
+					.parseBoolean(String.valueOf(ex.get(EXECUTOR_VIRTUAL_THREADS)));
+			Object autoscaling = ex.get(EXECUTOR_AUTOSCALING);
+			if (virtualThreads && autoscaling != null) {
+				Runner.getLogger().warn("Executor " + name
+						+ " uses virtual threads, the autoscaling option is ignored");
+			}
+
+			StandardThreadExecutor tcExecutor;
+			if (virtualThreads) {
+				tcExecutor = new VirtualThreadExecutor();
+			}
+			else if (autoscaling instanceof Map) {
+				tcExecutor = new AutoscalingExecutor(
+						createAutoscaling((Map<?, ?>) autoscaling));
+			}
+			else {
+				tcExecutor = new StandardThreadExecutor();
+			}
+			tcExecutor.setNamePrefix(name + "-exec-");
+			for (Map.Entry<String, Object> entry : ex.entrySet()) {
+				if (EXECUTOR_VIRTUAL_THREADS.equals(entry.getKey())
+						|| EXECUTOR_AUTOSCALING.equals(entry.getKey())) {
+					continue;
+				}
+				IntrospectionUtils.setProperty(tcExecutor, entry.getKey(),
+						entry.getValue().toString());
+			}
+
+			exObjects.add(tcExecutor);
+		}
+
+		return exObjects;
+	}
+
+	private static Autoscaling createAutoscaling(Map<?, ?> options) {
+		Autoscaling autoscaling = new Autoscaling();
+		for (Map.Entry<?, ?> entry : options.entrySet()) {
+			IntrospectionUtils.setProperty(autoscaling, entry.getKey().toString(),
+					entry.getValue().toString());
+		}
+		return autoscaling;
+	}
+
 	public List<Connector> createConnectorObjects() throws Exception {
+		return createConnectorObjects(Collections.<Executor>emptyList());
+	}
+
+	public List<Connector> createConnectorObjects(List<Executor> executorObjects)
+			throws Exception {
+		Map<String, Executor> executorsByName = new HashMap<>();
+		for (Executor executor : executorObjects) {
+			executorsByName.put(executor.getName(), executor);
+		}
+
 		List<Connector> conObjects = new ArrayList<>();
 
 		if (this.connector != null) {
@@ -197,7 +339,27 @@ public class Config {
 			}
 
 			for (Map.Entry<String, Object> entry : con.entrySet()) {
-				if (!entry.getKey().equals(CONNECTOR_PROTOCOL)) {
+				if (entry.getKey().equals(CONNECTOR_EXECUTOR)) {
+					Executor executor = executorsByName
+							.get(entry.getValue().toString());
+					if (executor == null) {
+						Runner.getLogger().warn(
+								"Executor '" + entry.getValue() + "' not found");
+						continue;
+					}
+					// same as the executor attribute of a connector in server.xml
+					IntrospectionUtils.callMethod1(tcConnector.getProtocolHandler(),
+							"setExecutor", executor,
+							java.util.concurrent.Executor.class.getName(),
+							getClass().getClassLoader());
+				}
+				else if (entry.getKey().equals(CONNECTOR_HTTP2)) {
+					Http2Protocol http2 = createHttp2Protocol(entry.getValue());
+					if (http2 != null) {
+						tcConnector.addUpgradeProtocol(http2);
+					}
+				}
+				else if (!entry.getKey().equals(CONNECTOR_PROTOCOL)) {
 					IntrospectionUtils.setProperty(tcConnector, entry.getKey(),
 							entry.getValue().toString());
 				}
@@ -209,6 +371,26 @@ public class Config {
 		return conObjects;
 	}
 
+	/**
+	 * Returns the HTTP/2 upgrade protocol of a connector with http2: true or with a map
+	 * of Http2Protocol properties, null if http2 is false. The connector then supports
+	 * h2 over TLS with ALPN and h2c without TLS.
+	 */
+	private static Http2Protocol createHttp2Protocol(Object options) {
+		if (options instanceof Map) {
+			Http2Protocol http2 = new Http2Protocol();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) options).entrySet()) {
+				IntrospectionUtils.setProperty(http2, entry.getKey().toString(),
+						entry.getValue().toString());
+			}
+			return http2;
+		}
+		if (Boolean.parseBoolean(options.toString())) {
+			return new Http2Protocol();
+		}
+		return null;
+	}
+
 	private static void replaceVariables(Map<String, Object> con) {
 		for (Map.Entry<String, Object> entry : con.entrySet()) {
 			String value = entry.getValue().toString().trim();
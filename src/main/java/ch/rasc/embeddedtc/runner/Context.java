@@ -21,10 +21,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.catalina.deploy.ApplicationParameter;
-import org.apache.catalina.deploy.ContextEnvironment;
-import org.apache.catalina.deploy.ContextResource;
 import org.apache.tomcat.util.IntrospectionUtils;
+import org.apache.tomcat.util.descriptor.web.ApplicationParameter;
+import org.apache.tomcat.util.descriptor.web.ContextEnvironment;
+import org.apache.tomcat.util.descriptor.web.ContextResource;
 
 public class Context {
 	private String embeddedWar;
@@ -37,6 +37,12 @@ public class Context {
 
 	private boolean sessionPersistence = false;
 
+	private boolean lazy = false;
+
+	private int startTimeout = 60;
+
+	private int idleTimeout = 0;
+
 	private List<Map<String, Object>> resources = Collections.emptyList();
 
 	private List<ContextEnvironment> environments = Collections.emptyList();
@@ -105,6 +111,30 @@ public class Context {
 		this.sessionPersistence = sessionPersistence;
 	}
 
+	public boolean isLazy() {
+		return this.lazy;
+	}
+
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public int getStartTimeout() {
+		return this.startTimeout;
+	}
+
+	public void setStartTimeout(int startTimeout) {
+		this.startTimeout = startTimeout;
+	}
+
+	public int getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
 	public String getContextFile() {
 		return this.contextFile;
 	}
@@ -231,7 +261,9 @@ public class Context {
 		return "Context [embeddedWar=" + this.embeddedWar + ", externalWar="
 				+ this.externalWar + ", contextPath=" + this.contextPath
 				+ ", contextFile=" + this.contextFile + ", sessionPersistence="
-				+ this.sessionPersistence + ", resources=" + this.resources
+				+ this.sessionPersistence + ", lazy=" + this.lazy + ", startTimeout="
+				+ this.startTimeout + ", idleTimeout=" + this.idleTimeout
+				+ ", resources=" + this.resources
 				+ ", environments=" + this.environments + ", parameters="
 				+ this.parameters + ", resource=" + this.resource + ", environment="
 				+ this.environment + ", parameter=" + this.parameter + "]";
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Copies entries of the application jar into the extract directory.
+ * <p>
+ * With more than one thread the entries are copied on a pool. The parent directories
+ * are created on the calling thread before an entry is handed to the pool, so the
+ * workers never create directories concurrently.
+ */
+public class JarExtractor implements Closeable {
+
+	private final ZipFile jarFile;
+
+	private final ExecutorService executor;
+
+	private final List<Future<Void>> pending = new ArrayList<>();
+
+	private int count;
+
+	/**
+	 * @param jarFile the application jar, null if the runner does not run from a jar
+	 * @param threads number of threads that copy the entries
+	 */
+	public JarExtractor(ZipFile jarFile, int threads) {
+		this.jarFile = jarFile;
+		if (threads > 1) {
+			this.executor = Executors.newFixedThreadPool(threads);
+		}
+		else {
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * Copies the entry to the target. The copy may still be running when this method
+	 * returns, {@link #await()} waits for all copies.
+	 */
+	public void extract(ZipEntry entry, Path target) throws IOException {
+		if (entry.isDirectory()) {
+			Files.createDirectories(target);
+			return;
+		}
+
+		Files.createDirectories(target.getParent());
+		CopyTask task = new CopyTask(this.jarFile, entry, target);
+		if (this.executor != null) {
+			this.pending.add(this.executor.submit(task));
+		}
+		else {
+			task.call();
+		}
+		this.count++;
+	}
+
+	/**
+	 * Expands the WAR entry directly from the application jar into the directory,
+	 * without writing the WAR itself to the disk. The WAR is read as one stream, the
+	 * expansion of one WAR is therefore not split between threads. The expansion may
+	 * still be running when this method returns, {@link #await()} waits for it.
+	 */
+	public void expand(ZipEntry warEntry, Path directory) throws IOException {
+		Files.createDirectories(directory);
+		ExpandTask task = new ExpandTask(this.jarFile, warEntry, directory);
+		if (this.executor != null) {
+			this.pending.add(this.executor.submit(task));
+		}
+		else {
+			task.call();
+		}
+		this.count++;
+	}
+
+	/**
+	 * Copies an entry of the application jar to the target. An entry that is not in the
+	 * application jar, like the configuration in the runtime jar of a layered build, is
+	 * read from the class path. The copy is finished when the method returns. Returns
+	 * false if the entry does not exist.
+	 */
+	public boolean extractResource(String name, Path target) throws IOException {
+		ZipEntry entry = this.jarFile != null ? this.jarFile.getEntry(name) : null;
+		try (InputStream is = entry != null ? this.jarFile.getInputStream(entry)
+				: JarExtractor.class.getResourceAsStream("/" + name)) {
+			if (is == null) {
+				return false;
+			}
+			Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+			this.count++;
+			return true;
+		}
+	}
+
+	/**
+	 * Waits until all entries are copied. Throws the exception of the first copy that
+	 * failed.
+	 */
+	public void await() throws IOException {
+		try {
+			for (Future<Void> future : this.pending) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		finally {
+			this.pending.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of extracted entries
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (this.executor != null) {
+				this.executor.shutdownNow();
+			}
+		}
+		finally {
+			if (this.jarFile != null) {
+				this.jarFile.close();
+			}
+		}
+	}
+
+	private static class CopyTask implements Callable<Void> {
+		private final ZipFile jarFile;
+
+		private final ZipEntry entry;
+
+		private final Path target;
+
+		CopyTask(ZipFile jarFile, ZipEntry entry, Path target) {
+			this.jarFile = jarFile;
+			this.entry = entry;
+			this.target = target;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			try (InputStream is = this.jarFile.getInputStream(this.entry)) {
+				Files.copy(is, this.target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return null;
+		}
+	}
+
+	private static class ExpandTask implements Callable<Void> {
+		private final ZipFile jarFile;
+
+		private final ZipEntry warEntry;
+
+		private final Path directory;
+
+		ExpandTask(ZipFile jarFile, ZipEntry warEntry, Path directory) {
+			this.jarFile = jarFile;
+			this.warEntry = warEntry;
+			this.directory = directory.toAbsolutePath().normalize();
+		}
+
+		@Override
+		public Void call() throws IOException {
+			try (ZipInputStream zis = new ZipInputStream(
+					this.jarFile.getInputStream(this.warEntry))) {
+				ZipEntry entry;
+				while ((entry = zis.getNextEntry()) != null) {
+					Path target = this.directory.resolve(entry.getName()).normalize();
+					if (!target.startsWith(this.directory)) {
+						throw new IOException("Entry " + entry.getName() + " of "
+								+ this.warEntry.getName() + " is outside of the WAR");
+					}
+
+					// only this task writes into the directory of the WAR
+					if (entry.isDirectory()) {
+						Files.createDirectories(target);
+					}
+					else {
+						Files.createDirectories(target.getParent());
+						Files.copy(zis, target, StandardCopyOption.REPLACE_EXISTING);
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+}
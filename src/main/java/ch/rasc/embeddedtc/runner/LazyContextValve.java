@@ -0,0 +1,307 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Host;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.mapper.MappingData;
+import org.apache.catalina.util.URLEncoder;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * Host valve that starts lazy contexts on their first request.
+ * <p>
+ * A lazy context is not added to the host at startup. The first request whose URI is
+ * in the path of the context creates the context, adds it to the host and maps the
+ * request again. Requests that Tomcat mapped to a context nested in the path of the
+ * lazy context, e.g. an eager "/a/b" in a lazy "/a", are left alone.
+ * <p>
+ * This relies on the CoyoteAdapter of Tomcat 8.5 that passes requests without a
+ * context to the host pipeline and leaves the 404 response to the host valve. The
+ * adapter of Tomcat 7 responded with 404 before the host valves ran.
+ * <p>
+ * The context is started on a separate thread, requests wait up to the start timeout
+ * and get a 503 response if the context is not started by then.
+ * <p>
+ * A context with an idle timeout is removed from the host again when it did not
+ * receive a request for that time. The next request creates a new context.
+ */
+public class LazyContextValve extends ValveBase {
+
+	private final List<LazyContext> lazyContexts = new ArrayList<>();
+
+	public LazyContextValve() {
+		super(true);
+	}
+
+	/**
+	 * Creates the context of a lazy context, called for every activation
+	 */
+	public interface ContextFactory {
+		Context create();
+	}
+
+	/**
+	 * @param path the context path
+	 * @param startTimeout seconds a request waits for the start of the context
+	 * @param idleTimeout seconds without a request after which the context is removed
+	 * again, 0 keeps the context
+	 */
+	public void addContext(String path, ContextFactory factory, int startTimeout,
+			int idleTimeout) {
+		this.lazyContexts.add(new LazyContext(path, factory, startTimeout, idleTimeout));
+	}
+
+	@Override
+	public void invoke(Request request, Response response)
+			throws IOException, ServletException {
+		LazyContext lazyContext = find(request.getDecodedRequestURI(),
+				request.getContext());
+		if (lazyContext == null) {
+			getNext().invoke(request, response);
+			return;
+		}
+
+		Context ctx = lazyContext.acquire((Host) getContainer());
+		if (ctx == null) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		try {
+			if (request.getContext() != ctx) {
+				map(request);
+
+				// the adapter only redirects requests that it mapped to a context
+				MessageBytes redirectPath = request.getMappingData().redirectPath;
+				if (!redirectPath.isNull()) {
+					String location = URLEncoder.DEFAULT.encode(redirectPath.toString(),
+							StandardCharsets.UTF_8);
+					if (request.getQueryString() != null) {
+						location = location + "?" + request.getQueryString();
+					}
+					response.sendRedirect(location);
+					return;
+				}
+			}
+			getNext().invoke(request, response);
+		}
+		finally {
+			lazyContext.release();
+		}
+	}
+
+	/**
+	 * Maps the request again, it was mapped before the context was added to the host
+	 */
+	private static void map(Request request) throws ServletException {
+		MappingData mappingData = request.getMappingData();
+		mappingData.recycle();
+		try {
+			request.getConnector().getService().getMapper().map(
+					request.getCoyoteRequest().serverName(),
+					request.getCoyoteRequest().decodedURI(), null, mappingData);
+		}
+		catch (Exception e) {
+			throw new ServletException(e);
+		}
+	}
+
+	/**
+	 * Returns the lazy context with the longest path that contains the URI, or null if
+	 * the request is mapped to a context with a longer path
+	 */
+	private LazyContext find(String uri, Context mappedContext) {
+		LazyContext result = null;
+		if (uri != null) {
+			for (LazyContext lazyContext : this.lazyContexts) {
+				String path = lazyContext.path;
+				if ((uri.equals(path) || uri.startsWith(path + "/")) && (result == null
+						|| result.path.length() < path.length())) {
+					result = lazyContext;
+				}
+			}
+		}
+		if (result != null && mappedContext != null
+				&& mappedContext.getPath().length() > result.path.length()) {
+			// a context nested in the path of the lazy context
+			return null;
+		}
+		return result;
+	}
+
+	@Override
+	public void backgroundProcess() {
+		super.backgroundProcess();
+		for (LazyContext lazyContext : this.lazyContexts) {
+			lazyContext.removeIfIdle((Host) getContainer());
+		}
+	}
+
+	private static class LazyContext {
+		private final String path;
+
+		private final ContextFactory factory;
+
+		private final int startTimeout;
+
+		private final int idleTimeout;
+
+		private FutureTask<Context> activation;
+
+		private int activeRequests;
+
+		private long lastAccess;
+
+		LazyContext(String path, ContextFactory factory, int startTimeout,
+				int idleTimeout) {
+			this.path = path;
+			this.factory = factory;
+			this.startTimeout = startTimeout;
+			this.idleTimeout = idleTimeout;
+		}
+
+		/**
+		 * Returns the started context, starting it if necessary, or null if the
+		 * context did not start in time. A returned context is not removed until
+		 * {@link #release()} is called.
+		 */
+		Context acquire(Host host) {
+			FutureTask<Context> task;
+			synchronized (this) {
+				if (this.activation == null) {
+					this.activation = new FutureTask<>(
+							new Activation(host, this.factory));
+					Thread thread = new Thread(this.activation,
+							"LazyStart" + (this.path.isEmpty() ? "/" : this.path));
+					thread.setDaemon(true);
+					thread.start();
+				}
+				task = this.activation;
+				this.activeRequests++;
+				this.lastAccess = System.currentTimeMillis();
+			}
+
+			Context ctx = null;
+			try {
+				ctx = task.get(this.startTimeout, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				Runner.getLogger().error("Starting the lazy context " + this.path
+						+ " failed", e.getCause());
+			}
+			catch (TimeoutException e) {
+				Runner.getLogger().warn("The lazy context " + this.path
+						+ " did not start within " + this.startTimeout + " seconds");
+			}
+
+			synchronized (this) {
+				if (ctx == null || !ctx.getState().isAvailable()) {
+					this.activeRequests--;
+					if (task.isDone() && this.activation == task) {
+						// the next request tries again
+						this.activation = null;
+						if (ctx != null) {
+							host.removeChild(ctx);
+						}
+					}
+					return null;
+				}
+			}
+			return ctx;
+		}
+
+		synchronized void release() {
+			this.activeRequests--;
+			this.lastAccess = System.currentTimeMillis();
+		}
+
+		/**
+		 * Removes the context from the host if it is idle. Requests for the context wait
+		 * until it is removed and then start a new context.
+		 */
+		synchronized void removeIfIdle(Host host) {
+			if (this.idleTimeout <= 0 || this.activation == null
+					|| !this.activation.isDone() || this.activeRequests > 0
+					|| System.currentTimeMillis()
+							- this.lastAccess < this.idleTimeout * 1000L) {
+				return;
+			}
+
+			Context ctx;
+			try {
+				ctx = this.activation.get();
+			}
+			catch (InterruptedException | ExecutionException e) {
+				return;
+			}
+			this.activation = null;
+
+			Runner.getLogger().info("Removing the idle lazy context " + this.path);
+			host.removeChild(ctx);
+		}
+	}
+
+	private static class Activation implements Callable<Context> {
+		private final Host host;
+
+		private final ContextFactory factory;
+
+		Activation(Host host, ContextFactory factory) {
+			this.host = host;
+			this.factory = factory;
+		}
+
+		@Override
+		public Context call() {
+			Context ctx = this.factory.create();
+			long start = System.nanoTime();
+			// starts the context, the host is already started
+			try {
+				this.host.addChild(ctx);
+			}
+			catch (RuntimeException e) {
+				this.host.removeChild(ctx);
+				throw e;
+			}
+			Runner.getLogger()
+					.info("Started the lazy context " + ctx.getName() + " in "
+							+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+							+ " ms");
+			return ctx;
+		}
+	}
+
+}
@@ -15,14 +15,18 @@
  */
 package ch.rasc.embeddedtc.runner;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.JarURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
@@ -34,38 +38,46 @@ import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import javax.servlet.ServletException;
 
 import org.apache.catalina.Context;
-import org.apache.catalina.Host;
+import org.apache.catalina.Executor;
+import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleEvent;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.LifecycleState;
+import org.apache.catalina.Manager;
 import org.apache.catalina.Valve;
 import org.apache.catalina.connector.Connector;
 import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.core.StandardServer;
-import org.apache.catalina.deploy.ApplicationParameter;
-import org.apache.catalina.deploy.ContextEnvironment;
-import org.apache.catalina.deploy.ContextResource;
 import org.apache.catalina.session.StandardManager;
 import org.apache.catalina.startup.ContextConfig;
 import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.util.ContextName;
 import org.apache.juli.ClassLoaderLogManager;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.ExceptionUtils;
+import org.apache.tomcat.util.descriptor.web.ApplicationParameter;
+import org.apache.tomcat.util.descriptor.web.ContextEnvironment;
+import org.apache.tomcat.util.descriptor.web.ContextResource;
 import org.apache.tomcat.util.log.SystemLogHandler;
 import org.yaml.snakeyaml.Yaml;
 
@@ -82,6 +94,16 @@ public class Runner {
 
 	public static final String EXTRA_RESOURCES_DIR = "extra";
 
+	public static final String ENTRY_HASHES_FILENAME = "ENTRY_HASHES";
+
+	public static final String STARTUP_REPORT_FILENAME = "startup-report.yaml";
+
+	private static final String EXPANDED_SUFFIX = "-expanded";
+
+	private static final String SHARED_SUFFIX = "-shared";
+
+	private static final String DELETED_SUFFIX = ".deleted-";
+
 	private static Tomcat tomcat;
 
 	private static Thread shutdownHook;
@@ -157,6 +179,8 @@ public class Runner {
 	private static void startTc(StartOptions startOptions) throws URISyntaxException,
 			IOException, Exception, ServletException, LifecycleException {
 
+		StartupTimer timer = new StartupTimer();
+		timer.begin("read config");
 		final Config config = readConfig(
 				startOptions.configFile != null && !startOptions.configFile.isEmpty()
 						? startOptions.configFile.get(0)
@@ -177,119 +201,160 @@ public class Runner {
 			extractDir = configuredPathToExtractDir;
 		}
 
+		timer.begin("check timestamp");
+		Path sharedCacheDir = null;
+		if (config.getSharedCacheDirectory() != null) {
+			sharedCacheDir = config.getMyJarDirectory()
+					.resolve(config.getSharedCacheDirectory());
+		}
+
+		// the timestamp is the packaging time or, in a reproducible build, a hash of
+		// the content. The extract directory also records where the WARs were
+		// extracted to.
+		String warsSuffix = "";
+		if (sharedCacheDir != null) {
+			warsSuffix = SHARED_SUFFIX;
+		}
+		else if (config.isExpandWarsFromJar()) {
+			warsSuffix = EXPANDED_SUFFIX;
+		}
+		String timestamp = readTimestamp();
+		if (timestamp != null) {
+			timestamp += warsSuffix;
+		}
+
 		boolean extractWar = true;
+		String extractTimestamp = null;
 
 		if (Files.exists(extractDir) && !startOptions.clean) {
 			Path timestampFile = extractDir.resolve(TIMESTAMP_FILENAME);
 			if (Files.exists(timestampFile)) {
 				byte[] extractTimestampBytes = Files.readAllBytes(timestampFile);
-				String extractTimestamp = new String(extractTimestampBytes,
+				extractTimestamp = new String(extractTimestampBytes,
 						StandardCharsets.UTF_8);
 
-				String timestamp = null;
-				try (InputStream is = Runner.class
-						.getResourceAsStream("/" + TIMESTAMP_FILENAME);
-						ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-
-					copy(is, bos);
-					timestamp = new String(bos.toByteArray(), StandardCharsets.UTF_8);
-				}
-
-				if (Long.parseLong(timestamp) <= Long.parseLong(extractTimestamp)) {
+				if (extractTimestamp.equals(timestamp)) {
 					extractWar = false;
 				}
 
 			}
 		}
 
-		boolean isWin = System.getProperty("os.name").toLowerCase().contains("win");
+		String osName = System.getProperty("os.name").toLowerCase();
+		boolean isWin = osName.contains("win");
+		String osArch = System.getProperty("os.arch");
+		// the bundled library is built for x86_64, not for aarch64
+		boolean isLinux64 = osName.contains("linux")
+				&& ("amd64".equals(osArch) || "x86_64".equals(osArch));
 
 		Path loggingPropertyFile = extractDir.resolve("logging.properties");
 		Path loggingDir = extractDir.resolve("logs");
 		Path tempDir = extractDir.resolve("temp");
 		final Path defaultWebxmlFile = extractDir.resolve("web.xml");
 
-		if (extractWar || startOptions.clean) {
+		List<String> startupMessages = new ArrayList<>();
 
-			if (Files.exists(extractDir)) {
-				Files.walkFileTree(extractDir, new DeleteDirectory());
+		// extract directories of earlier starts whose deletion did not finish
+		List<Path> directoriesToDelete = new ArrayList<>();
+		Path extractParentDir = extractDir.toAbsolutePath().getParent();
+		if (extractParentDir != null && Files.isDirectory(extractParentDir)) {
+			try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(
+					extractParentDir, extractDir.getFileName() + DELETED_SUFFIX + "*")) {
+				for (Path leftover : leftovers) {
+					directoriesToDelete.add(leftover);
+				}
 			}
+		}
 
-			Files.createDirectories(extractDir);
-			Files.createDirectory(tempDir);
-			Files.createDirectory(loggingDir);
-			Files.createDirectory(extractDir.resolve("webapps"));
-
-			CodeSource src = Runner.class.getProtectionDomain().getCodeSource();
-			List<String> warList = new ArrayList<>();
-			List<String> extraList = new ArrayList<>();
-
-			if (src != null) {
-				URL jar = src.getLocation();
-				ZipInputStream zip = new ZipInputStream(jar.openStream());
-				ZipEntry ze = null;
-
-				String extraDirName = EXTRA_RESOURCES_DIR + "/";
-				while ((ze = zip.getNextEntry()) != null) {
-					String entryName = ze.getName();
-					if (entryName.startsWith(extraDirName)) {
-						extraList.add(entryName);
+		Set<String> changedWars = new HashSet<>();
+		if (extractWar || startOptions.clean) {
+			timer.begin("extract");
+
+			// only the entries that changed since the last extraction are extracted
+			// again, if the WARs were extracted the same way
+			Map<String, String> lastEntryHashes = null;
+			if (extractTimestamp != null
+					&& getWarsSuffix(extractTimestamp).equals(warsSuffix)) {
+				lastEntryHashes = readEntryHashes(
+						extractDir.resolve(ENTRY_HASHES_FILENAME));
+			}
+
+			if (lastEntryHashes == null) {
+				if (Files.exists(extractDir)) {
+					// renamed right away, the files are deleted in the background
+					Path oldExtractDir = extractDir.resolveSibling(extractDir
+							.getFileName() + DELETED_SUFFIX + System.nanoTime());
+					try {
+						Files.move(extractDir, oldExtractDir);
+						directoriesToDelete.add(oldExtractDir);
 					}
-					else if (entryName.endsWith(".war")) {
-						warList.add(entryName);
+					catch (IOException e) {
+						Files.walkFileTree(extractDir, new DeleteDirectory());
 					}
 				}
 			}
-
-			for (String war : warList) {
-				Path warFile = extractDir.resolve(war);
-				try (InputStream is = Runner.class.getResourceAsStream("/" + war)) {
-					Files.copy(is, warFile);
-				}
+			else {
+				// an interrupted extraction is repeated on the next start
+				Files.delete(extractDir.resolve(TIMESTAMP_FILENAME));
 			}
 
-			try (InputStream is = Runner.class.getResourceAsStream("/conf/web.xml")) {
-				Files.copy(is, defaultWebxmlFile);
-			}
+			Files.createDirectories(extractDir);
+			Files.createDirectories(tempDir);
+			Files.createDirectories(loggingDir);
+			Files.createDirectories(extractDir.resolve("webapps"));
+
+			// one pass over the central directory of the jar, the entries are read
+			// directly instead of through the class loader
+			long extractionStart = System.nanoTime();
+			int unchanged = 0;
+			ZipFile jarFile = openApplicationJar();
+			try (JarExtractor extractor = new JarExtractor(jarFile,
+					config.getExtractionThreads())) {
+				if (jarFile != null) {
+					unchanged = extractEntries(jarFile, extractor, extractDir,
+							lastEntryHashes, config.isExpandWarsFromJar(),
+							sharedCacheDir != null, changedWars);
+				}
 
-			try (InputStream is = Runner.class
-					.getResourceAsStream("/conf/logging.properties")) {
-				Files.copy(is, loggingPropertyFile);
-			}
+				extractor.extractResource("conf/web.xml", defaultWebxmlFile);
+				extractor.extractResource("conf/logging.properties",
+						loggingPropertyFile);
 
-			if (!extraList.isEmpty()) {
-				for (String extra : extraList) {
-					Path extraFile = extractDir.resolve(extra);
-					Files.createDirectories(extraFile.getParent());
-					try (InputStream is = Runner.class.getResourceAsStream("/" + extra)) {
-						Files.copy(is, extraFile);
+				if (isWin) {
+					if (System.getProperty("os.arch").contains("64")) {
+						extractor.extractResource("tcnative-1.dll.64",
+								extractDir.resolve("tcnative-1.dll"));
+					}
+					else {
+						extractor.extractResource("tcnative-1.dll.32",
+								extractDir.resolve("tcnative-1.dll"));
 					}
 				}
-			}
+				else if (isLinux64) {
+					extractor.extractResource("libtcnative-1.so.64",
+							extractDir.resolve("libtcnative-1.so"));
+				}
 
-			Path timestampFile = extractDir.resolve(TIMESTAMP_FILENAME);
-			try (InputStream is = Runner.class
-					.getResourceAsStream("/" + TIMESTAMP_FILENAME)) {
-				Files.copy(is, timestampFile);
-			}
+				extractor.await();
 
-			if (isWin) {
-				if (System.getProperty("os.arch").contains("64")) {
-					try (InputStream is = Runner.class
-							.getResourceAsStream("/tcnative-1.dll.64")) {
-						if (is != null) {
-							Files.copy(is, extractDir.resolve("tcnative-1.dll"));
-						}
-					}
+				Path entryHashesFile = extractDir.resolve(ENTRY_HASHES_FILENAME);
+				if (!extractor.extractResource(ENTRY_HASHES_FILENAME, entryHashesFile)) {
+					Files.deleteIfExists(entryHashesFile);
 				}
-				else {
-					try (InputStream is = Runner.class
-							.getResourceAsStream("/tcnative-1.dll.32")) {
-						if (is != null) {
-							Files.copy(is, extractDir.resolve("tcnative-1.dll"));
-						}
-					}
+
+				// written last, an interrupted extraction is repeated on the next start
+				if (timestamp != null) {
+					Files.write(extractDir.resolve(TIMESTAMP_FILENAME),
+							timestamp.getBytes(StandardCharsets.UTF_8));
 				}
+
+				// logged when the logging is configured
+				startupMessages.add(String.format(
+						"Extracted %d entries in %d ms (%d threads, %d unchanged)",
+						extractor.getCount(),
+						TimeUnit.NANOSECONDS
+								.toMillis(System.nanoTime() - extractionStart),
+						config.getExtractionThreads(), unchanged));
 			}
 
 		}
@@ -300,24 +365,83 @@ public class Runner {
 					extraDir.toAbsolutePath().toString());
 		}
 
-		if (isWin) {
+		Path nativeLibrary = extractDir
+				.resolve(isWin ? "tcnative-1.dll" : "libtcnative-1.so");
+		if ((isWin || isLinux64) && Files.exists(nativeLibrary)) {
 			String libraryPath = System.getProperty("java.library.path");
-			libraryPath = extractDir.toString() + ";" + libraryPath;
+			libraryPath = extractDir.toString() + File.pathSeparator + libraryPath;
 			System.setProperty("java.library.path", libraryPath);
 
-			Field fieldSysPath = ClassLoader.class.getDeclaredField("sys_paths");
-			fieldSysPath.setAccessible(true);
-			fieldSysPath.set(null, null);
+			// the class loader reads java.library.path again when sys_paths is null
+			try {
+				Field fieldSysPath = ClassLoader.class.getDeclaredField("sys_paths");
+				fieldSysPath.setAccessible(true);
+				fieldSysPath.set(null, null);
+			}
+			catch (ReflectiveOperationException | RuntimeException e) {
+				startupMessages.add("Adding " + extractDir
+						+ " to the library path failed, start the JVM with "
+						+ "-Djava.library.path=" + extractDir
+						+ " to load the native library");
+			}
 		}
 
+		timer.begin("find wars");
 		List<String> absolutePathsToEmbeddedWars = new ArrayList<>();
+		Map<String, Path> sharedWarDirs = new HashMap<>();
+
+		if (sharedCacheDir != null || config.isExpandWarsFromJar()) {
+			// the WARs only exist in the jar, they are referenced by the path they
+			// would have in the extract directory
+			try (ZipFile jarFile = openApplicationJar()) {
+				if (jarFile != null) {
+					Enumeration<? extends ZipEntry> entries = jarFile.entries();
+					while (entries.hasMoreElements()) {
+						String entryName = entries.nextElement().getName();
+						if (entryName.endsWith(".war")
+								&& !entryName.startsWith(EXTRA_RESOURCES_DIR + "/")) {
+							absolutePathsToEmbeddedWars.add(extractDir.resolve(entryName)
+									.toAbsolutePath().toString());
+						}
+					}
+
+					if (sharedCacheDir != null) {
+						// checked on every start, the cache may have been cleaned up
+						Map<String, String> entryHashes = Collections.emptyMap();
+						ZipEntry entryHashesEntry = jarFile
+								.getEntry(ENTRY_HASHES_FILENAME);
+						if (entryHashesEntry != null) {
+							try (InputStream is = jarFile
+									.getInputStream(entryHashesEntry)) {
+								entryHashes = readEntryHashes(is);
+							}
+						}
 
-		try (DirectoryStream<Path> wars = Files.newDirectoryStream(extractDir, "*.war")) {
-			for (Path war : wars) {
-				absolutePathsToEmbeddedWars.add(war.toAbsolutePath().toString());
+						SharedWarCache cache = new SharedWarCache(sharedCacheDir,
+								config.getExtractionThreads());
+						for (Map.Entry<String, Path> entry : cache
+								.populate(jarFile, entryHashes).entrySet()) {
+							sharedWarDirs.put(extractDir.resolve(entry.getKey())
+									.toAbsolutePath().toString(), entry.getValue());
+						}
+						if (cache.getExpandedCount() > 0) {
+							startupMessages.add("Expanded " + cache.getExpandedCount()
+									+ " WARs into " + sharedCacheDir);
+						}
+					}
+				}
+			}
+		}
+		else {
+			try (DirectoryStream<Path> wars = Files.newDirectoryStream(extractDir,
+					"*.war")) {
+				for (Path war : wars) {
+					absolutePathsToEmbeddedWars.add(war.toAbsolutePath().toString());
+				}
 			}
 		}
 
+		timer.begin("configure logging");
 		System.setProperty("java.io.tmpdir", tempDir.toAbsolutePath().toString());
 		System.setProperty("log.dir", loggingDir.toAbsolutePath().toString());
 		System.setProperty("java.util.logging.config.file",
@@ -325,7 +449,27 @@ public class Runner {
 		System.setProperty("java.util.logging.manager",
 				"org.apache.juli.ClassLoaderLogManager");
 
-		List<Connector> connectors = config.createConnectorObjects();
+		for (String message : startupMessages) {
+			getLogger().info(message);
+		}
+
+		if (!directoriesToDelete.isEmpty()) {
+			new DeleteDirectoriesThread(directoriesToDelete).start();
+		}
+
+		// Created before the connectors. The connectors use OpenSSL for TLS when the
+		// AprLifecycleListener finds the native library.
+		timer.begin("create listeners");
+		List<LifecycleListener> listeners = new ArrayList<>();
+		for (String listenerClassName : config.getListeners()) {
+			Class<LifecycleListener> listener = (Class<LifecycleListener>) Class
+					.forName(listenerClassName);
+			listeners.add(listener.newInstance());
+		}
+
+		timer.begin("create connectors");
+		List<Executor> executors = config.createExecutorObjects();
+		List<Connector> connectors = config.createConnectorObjects(executors);
 		for (Connector connector : connectors) {
 			try {
 				try (ServerSocket srv = new ServerSocket(connector.getPort())) {
@@ -340,47 +484,14 @@ public class Runner {
 			}
 		}
 
-		tomcat = new Tomcat() {
-
-			@Override
-			public Context addWebapp(@SuppressWarnings("hiding") Host host, String url,
-					String name, String path) {
-				String base = "org.apache.catalina.core.ContainerBase.[default].[";
-				if (host == null) {
-					base += getHost().getName();
-				}
-				else {
-					base += host.getName();
-				}
-				base += "].[";
-				base += url;
-				base += "]";
-				if (config.isSilent()) {
-					Logger.getLogger(base).setLevel(Level.WARNING);
-				}
-				else {
-					Logger.getLogger(base).setLevel(Level.INFO);
-				}
-
-				Context ctx = new StandardContext();
-				ctx.setName(name);
-				ctx.setPath(url);
-				ctx.setDocBase(path);
-
-				ContextConfig ctxCfg = new ContextConfig();
-				ctx.addLifecycleListener(ctxCfg);
-				ctxCfg.setDefaultWebXml(defaultWebxmlFile.toAbsolutePath().toString());
-				getHost().addChild(ctx);
-
-				return ctx;
-			}
-
-		};
+		timer.begin("create server");
+		tomcat = new Tomcat();
 
 		tomcat.setBaseDir(extractDir.toAbsolutePath().toString());
 		tomcat.setSilent(config.isSilent());
 
 		for (String s : new String[] { "org.apache.coyote.http11.Http11NioProtocol",
+				"org.apache.coyote.http11.Http11AprProtocol",
 				"org.apache.tomcat.util.net.NioSelectorPool", Runner.class.getName() }) {
 			if (config.isSilent()) {
 				Logger.getLogger(s).setLevel(Level.WARNING);
@@ -394,17 +505,41 @@ public class Runner {
 		tomcat.getHost();
 
 		// Install the listeners
-		for (String listenerClassName : config.getListeners()) {
-			Class<LifecycleListener> listener = (Class<LifecycleListener>) Class
-					.forName(listenerClassName);
-			tomcat.getServer().addLifecycleListener(listener.newInstance());
+		timer.begin("install listeners");
+		for (LifecycleListener listener : listeners) {
+			tomcat.getServer().addLifecycleListener(listener);
 		}
 
-		for (Connector connector : connectors) {
-			tomcat.setConnector(connector);
-			tomcat.getService().addConnector(connector);
+		timer.begin("configure server");
+		for (Executor executor : executors) {
+			// started with the service, before the connectors
+			tomcat.getService().addExecutor(executor);
+		}
+
+		Connector warmupConnector = null;
+		if (config.getWarmup() != null && !config.getWarmup().getRequests().isEmpty()) {
+			// the configured connectors are added after the warmup
+			if (connectors.isEmpty()) {
+				// the connector Tomcat creates when no connector is set
+				Connector connector = new Connector("HTTP/1.1");
+				connector.setPort(8080);
+				connectors = Collections.singletonList(connector);
+			}
+			warmupConnector = new Connector("HTTP/1.1");
+			warmupConnector.setPort(0);
+			warmupConnector.setProperty("address", "127.0.0.1");
+			tomcat.setConnector(warmupConnector);
+		}
+		else {
+			for (Connector connector : connectors) {
+				tomcat.setConnector(connector);
+			}
 		}
 
+		// number of threads that start the contexts, 0 uses one thread per processor.
+		// A context that fails still stops the server with the listener below.
+		tomcat.getHost().setStartStopThreads(config.getStartStopThreads());
+
 		if (config.getJvmRoute() != null && !config.getJvmRoute().isEmpty()) {
 			tomcat.getEngine().setJvmRoute(config.getJvmRoute());
 		}
@@ -425,7 +560,8 @@ public class Runner {
 			config.setContexts(Collections.singletonList(ctx));
 		}
 
-		List<Context> contextsWithoutSessionPersistence = new ArrayList<>();
+		LazyContextValve lazyContextValve = new LazyContextValve();
+		boolean hasLazyContexts = false;
 		for (ch.rasc.embeddedtc.runner.Context configuredContext : config.getContexts()) {
 			configuredContext.decryptPasswords(startOptions.password);
 
@@ -433,6 +569,7 @@ public class Runner {
 			if (contextPath == null) {
 				contextPath = "";
 			}
+			timer.begin("add webapp " + (contextPath.isEmpty() ? "/" : contextPath));
 
 			String warPath = null;
 
@@ -475,56 +612,65 @@ public class Runner {
 				warPath = absolutePathsToEmbeddedWars.iterator().next();
 			}
 
-			Context ctx = tomcat.addWebapp(contextPath, warPath);
-			ctx.setSwallowOutput(true);
-
-			for (ContextEnvironment env : configuredContext.getEnvironments()) {
-				ctx.getNamingResources().addEnvironment(env);
+			boolean embeddedWar = absolutePathsToEmbeddedWars.contains(warPath);
+			String docBase = warPath;
+			if (sharedWarDirs.containsKey(warPath)) {
+				docBase = sharedWarDirs.get(warPath).toAbsolutePath().toString();
 			}
-
-			for (ContextResource res : configuredContext.createContextResourceObjects()) {
-				ctx.getNamingResources().addResource(res);
+			else if (embeddedWar && config.isExpandWarsFromJar()) {
+				docBase = getExpandedWarDirectory(extractDir,
+						Paths.get(warPath).getFileName().toString()).toAbsolutePath()
+								.toString();
 			}
 
-			for (ApplicationParameter param : configuredContext.getParameters()) {
-				ctx.addApplicationParameter(param);
+			if (changedWars.contains(warPath)) {
+				// the compiled JSPs and the serialized sessions of the old WAR and the
+				// directory Tomcat expanded the old WAR into
+				String baseName = new ContextName(contextPath, null).getBaseName();
+				deleteDirectory(extractDir.resolve("work")
+						.resolve(tomcat.getEngine().getName())
+						.resolve(tomcat.getHost().getName()).resolve(baseName));
+				if (sharedCacheDir == null && !config.isExpandWarsFromJar()) {
+					deleteDirectory(extractDir.resolve("webapps").resolve(baseName));
+				}
 			}
 
-			if (configuredContext.getContextFile() != null) {
-				Path contextFilePath = Paths.get(configuredContext.getContextFile());
-				if (Files.exists(contextFilePath)) {
-					try {
-						URL contextFileURL = contextFilePath.toUri().toURL();
-						ctx.setConfigFile(contextFileURL);
-					}
-					catch (Exception e) {
-						getLogger().error(
-								"Problem with the context file: " + e.getMessage());
-					}
+			SkippingJarScanner jarScanner = null;
+			if (embeddedWar) {
+				if (sharedCacheDir != null || config.isExpandWarsFromJar()) {
+					jarScanner = SkippingJarScanner.forExpandedWar(
+							Paths.get(warPath).getFileName().toString());
 				}
-			}
-			else {
-				URL contextFileURL = getContextXml(warPath);
-				if (contextFileURL != null) {
-					ctx.setConfigFile(contextFileURL);
+				else {
+					jarScanner = SkippingJarScanner.forWar(Paths.get(warPath));
 				}
-			}
-
-			// Shutdown tomcat if a failure occurs during startup
-			ctx.addLifecycleListener(new LifecycleListener() {
-				@Override
-				public void lifecycleEvent(LifecycleEvent event) {
-					if (event.getLifecycle().getState() == LifecycleState.FAILED) {
-						((StandardServer) tomcat.getServer()).stopAwait();
-					}
+				if (jarScanner != null) {
+					getLogger().info("Skipping the scan of "
+							+ jarScanner.getJarsToSkipCount() + " jars in " + warPath);
 				}
-			});
+			}
 
-			if (!configuredContext.isSessionPersistence()) {
-				contextsWithoutSessionPersistence.add(ctx);
+			WebappFactory webappFactory = new WebappFactory(config, configuredContext,
+					contextPath, docBase, defaultWebxmlFile, jarScanner, timer);
+			if (configuredContext.isLazy()) {
+				// started by the valve on the first request
+				lazyContextValve.addContext(contextPath, webappFactory,
+						configuredContext.getStartTimeout(),
+						configuredContext.getIdleTimeout());
+				hasLazyContexts = true;
+			}
+			else {
+				Context ctx = webappFactory.create();
+				// Shutdown tomcat if a failure occurs during startup
+				ctx.addLifecycleListener(new StopOnFailure());
+				tomcat.getHost().addChild(ctx);
 			}
 		}
 
+		if (hasLazyContexts) {
+			tomcat.getHost().getPipeline().addValve(lazyContextValve);
+		}
+
 		System.setOut(new SystemLogHandler(System.out));
 		System.setErr(new SystemLogHandler(System.err));
 
@@ -535,11 +681,28 @@ public class Runner {
 			tomcat.getServer().setShutdown(config.getShutdown().getCommand());
 		}
 
+		timer.begin("start");
 		tomcat.start();
 
-		// Disable session persistence support
-		for (Context ctx : contextsWithoutSessionPersistence) {
-			((StandardManager) ctx.getManager()).setPathname(null);
+		if (warmupConnector != null) {
+			timer.begin("warmup");
+			new WarmupClient(config.getWarmup()).run(warmupConnector.getLocalPort());
+			tomcat.getService().removeConnector(warmupConnector);
+			warmupConnector.destroy();
+
+			timer.begin("start connectors");
+			for (Connector connector : connectors) {
+				tomcat.setConnector(connector);
+			}
+		}
+		timer.end();
+
+		getLogger().info(timer.format());
+		try {
+			timer.writeReport(loggingDir.resolve(STARTUP_REPORT_FILENAME), timestamp);
+		}
+		catch (IOException e) {
+			getLogger().warn("Writing the startup report failed", e);
 		}
 
 		if (config.isUseShutdownHook()) {
@@ -586,8 +749,7 @@ public class Runner {
 
 	private static Config readConfig(String pathToConfigFile)
 			throws URISyntaxException, IOException {
-		URL myJarLocationURL = Runner.class.getProtectionDomain().getCodeSource()
-				.getLocation();
+		URL myJarLocationURL = getApplicationJarLocation();
 		Path myJar = Paths.get(myJarLocationURL.toURI());
 		Path myJarDir = myJar.getParent();
 
@@ -620,6 +782,12 @@ public class Runner {
 	}
 
 	private static URL getContextXml(String warPath) throws IOException {
+		Path docBase = Paths.get(warPath);
+		if (Files.isDirectory(docBase)) {
+			Path contextXml = docBase.resolve("META-INF/context.xml");
+			return Files.exists(contextXml) ? contextXml.toUri().toURL() : null;
+		}
+
 		String urlStr = "jar:file:" + warPath + "!/META-INF/context.xml";
 		URL url = new URL(urlStr);
 		try (InputStream is = url.openConnection().getInputStream()) {
@@ -634,6 +802,193 @@ public class Runner {
 		return null;
 	}
 
+	/**
+	 * Extracts the WARs and extra resources of the jar. With the hashes of the last
+	 * extraction only the entries that changed are extracted again, the files of
+	 * changed and removed entries are deleted first. The paths of the extracted WARs are
+	 * added to changedWars. Returns the number of unchanged entries.
+	 *
+	 * @param lastEntryHashes the hashes of the last extraction, null to extract all
+	 * entries
+	 * @param sharedCache true if the WARs are expanded into the shared cache, the WARs
+	 * are then not extracted
+	 */
+	static int extractEntries(ZipFile jarFile, JarExtractor extractor, Path extractDir,
+			Map<String, String> lastEntryHashes, boolean expandWarsFromJar,
+			boolean sharedCache, Set<String> changedWars) throws IOException {
+		int unchanged = 0;
+		Map<String, String> entryHashes = Collections.emptyMap();
+		ZipEntry entryHashesEntry = jarFile.getEntry(ENTRY_HASHES_FILENAME);
+		if (entryHashesEntry != null) {
+			try (InputStream is = jarFile.getInputStream(entryHashesEntry)) {
+				entryHashes = readEntryHashes(is);
+			}
+		}
+
+		String extraDirName = EXTRA_RESOURCES_DIR + "/";
+		Enumeration<? extends ZipEntry> entries = jarFile.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			String entryName = entry.getName();
+			boolean isWar = !entryName.startsWith(extraDirName)
+					&& entryName.endsWith(".war");
+			if (!isWar && !entryName.startsWith(extraDirName)) {
+				continue;
+			}
+
+			if (lastEntryHashes != null) {
+				String hash = entryHashes.get(entryName);
+				if (hash != null && hash.equals(lastEntryHashes.get(entryName))) {
+					unchanged++;
+					continue;
+				}
+				removeExtractedEntry(extractDir, entryName, expandWarsFromJar);
+			}
+
+			if (isWar) {
+				changedWars.add(
+						extractDir.resolve(entryName).toAbsolutePath().toString());
+				if (sharedCache) {
+					// expanded into the shared cache by the caller
+					continue;
+				}
+				if (expandWarsFromJar) {
+					extractor.expand(entry,
+							getExpandedWarDirectory(extractDir, entryName));
+					continue;
+				}
+			}
+			extractor.extract(entry, extractDir.resolve(entryName));
+		}
+
+		if (lastEntryHashes != null) {
+			for (String entryName : lastEntryHashes.keySet()) {
+				if (!entryHashes.containsKey(entryName)) {
+					removeExtractedEntry(extractDir, entryName, expandWarsFromJar);
+				}
+			}
+		}
+		return unchanged;
+	}
+
+	/**
+	 * Returns the directory in the appBase of the host where an embedded WAR is
+	 * expanded when the WARs are expanded directly from the jar
+	 */
+	private static Path getExpandedWarDirectory(Path extractDir, String warFileName) {
+		String name = warFileName.substring(0, warFileName.length() - ".war".length());
+		return extractDir.resolve("webapps").resolve(name);
+	}
+
+	/**
+	 * Reads the hashes of the WARs and extra resources written by the plugin. Returns
+	 * null if the file does not exist.
+	 */
+	private static Map<String, String> readEntryHashes(Path file) throws IOException {
+		if (!Files.exists(file)) {
+			return null;
+		}
+		try (InputStream is = Files.newInputStream(file)) {
+			return readEntryHashes(is);
+		}
+	}
+
+	private static Map<String, String> readEntryHashes(InputStream is)
+			throws IOException {
+		Map<String, String> entryHashes = new HashMap<>();
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(is, StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int pos = line.indexOf(' ');
+			if (pos != -1) {
+				entryHashes.put(line.substring(pos + 1), line.substring(0, pos));
+			}
+		}
+		return entryHashes;
+	}
+
+	/**
+	 * Returns the suffix of the timestamp in the extract directory that records where
+	 * the WARs were extracted to
+	 */
+	private static String getWarsSuffix(String extractTimestamp) {
+		if (extractTimestamp.endsWith(SHARED_SUFFIX)) {
+			return SHARED_SUFFIX;
+		}
+		if (extractTimestamp.endsWith(EXPANDED_SUFFIX)) {
+			return EXPANDED_SUFFIX;
+		}
+		return "";
+	}
+
+	/**
+	 * Deletes an extracted entry. For a WAR that was expanded directly from the jar this
+	 * includes the directory it was expanded into.
+	 */
+	private static void removeExtractedEntry(Path extractDir, String entryName,
+			boolean expandWarsFromJar) throws IOException {
+		Files.deleteIfExists(extractDir.resolve(entryName));
+		if (expandWarsFromJar && entryName.endsWith(".war")
+				&& !entryName.startsWith(EXTRA_RESOURCES_DIR + "/")) {
+			deleteDirectory(getExpandedWarDirectory(extractDir, entryName));
+		}
+	}
+
+	private static void deleteDirectory(Path dir) throws IOException {
+		if (Files.exists(dir)) {
+			Files.walkFileTree(dir, new DeleteDirectory());
+		}
+	}
+
+	/**
+	 * Returns the WAR_TIMESTAMP of the jar or null if the runner does not run from a
+	 * packaged jar
+	 */
+	private static String readTimestamp() throws IOException {
+		try (InputStream is = Runner.class
+				.getResourceAsStream("/" + TIMESTAMP_FILENAME)) {
+			if (is == null) {
+				return null;
+			}
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			copy(is, bos);
+			return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Opens the jar that contains the WARs. Returns null if the runner does not run
+	 * from a jar.
+	 */
+	private static ZipFile openApplicationJar() throws IOException, URISyntaxException {
+		URL location = getApplicationJarLocation();
+		if (location != null && "file".equals(location.getProtocol())) {
+			Path jar = Paths.get(location.toURI());
+			if (Files.isRegularFile(jar)) {
+				return new ZipFile(jar.toFile());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the location of the jar that contains the WARs. This is the jar of the
+	 * runner classes, unless the plugin wrote the runtime into a separate jar.
+	 */
+	private static URL getApplicationJarLocation() throws IOException {
+		URL timestamp = Runner.class.getResource("/" + TIMESTAMP_FILENAME);
+		if (timestamp != null && "jar".equals(timestamp.getProtocol())) {
+			return ((JarURLConnection) timestamp.openConnection()).getJarFileURL();
+		}
+
+		CodeSource src = Runner.class.getProtectionDomain().getCodeSource();
+		if (src != null) {
+			return src.getLocation();
+		}
+		return null;
+	}
+
 	public static Log getLogger() {
 		return LogFactory.getLog(Runner.class);
 	}
@@ -646,6 +1001,177 @@ public class Runner {
 		}
 	}
 
+	/**
+	 * Creates the Tomcat context of a configured context. A lazy context is created
+	 * again every time it is started.
+	 */
+	private static class WebappFactory implements LazyContextValve.ContextFactory {
+		private final Config config;
+
+		private final ch.rasc.embeddedtc.runner.Context configuredContext;
+
+		private final String contextPath;
+
+		private final String docBase;
+
+		private final Path defaultWebxmlFile;
+
+		private final SkippingJarScanner jarScanner;
+
+		private final StartupTimer timer;
+
+		private final List<ContextResource> resources;
+
+		private boolean timed;
+
+		WebappFactory(Config config,
+				ch.rasc.embeddedtc.runner.Context configuredContext, String contextPath,
+				String docBase, Path defaultWebxmlFile, SkippingJarScanner jarScanner,
+				StartupTimer timer) {
+			this.config = config;
+			this.configuredContext = configuredContext;
+			this.contextPath = contextPath;
+			this.docBase = docBase;
+			this.defaultWebxmlFile = defaultWebxmlFile;
+			this.jarScanner = jarScanner;
+			this.timer = timer;
+			this.resources = configuredContext.createContextResourceObjects();
+		}
+
+		@Override
+		public Context create() {
+			String base = "org.apache.catalina.core.ContainerBase.[default].["
+					+ tomcat.getHost().getName() + "].[" + this.contextPath + "]";
+			if (this.config.isSilent()) {
+				Logger.getLogger(base).setLevel(Level.WARNING);
+			}
+			else {
+				Logger.getLogger(base).setLevel(Level.INFO);
+			}
+
+			Context ctx = new StandardContext();
+			ctx.setName(this.contextPath);
+			ctx.setPath(this.contextPath);
+			ctx.setDocBase(this.docBase);
+
+			ContextConfig ctxCfg = new ContextConfig();
+			ctx.addLifecycleListener(ctxCfg);
+			ctxCfg.setDefaultWebXml(this.defaultWebxmlFile.toAbsolutePath().toString());
+
+			ctx.setSwallowOutput(true);
+			// the startup report only contains the first start of a lazy context
+			if (!this.timed) {
+				this.timer.addContext(ctx);
+				this.timed = true;
+			}
+
+			if (this.jarScanner != null) {
+				ctx.setJarScanner(this.jarScanner);
+			}
+
+			for (ContextEnvironment env : this.configuredContext.getEnvironments()) {
+				ctx.getNamingResources().addEnvironment(env);
+			}
+
+			for (ContextResource res : this.resources) {
+				ctx.getNamingResources().addResource(res);
+			}
+
+			for (ApplicationParameter param : this.configuredContext.getParameters()) {
+				ctx.addApplicationParameter(param);
+			}
+
+			if (this.configuredContext.getContextFile() != null) {
+				Path contextFilePath = Paths.get(this.configuredContext.getContextFile());
+				if (Files.exists(contextFilePath)) {
+					try {
+						URL contextFileURL = contextFilePath.toUri().toURL();
+						ctx.setConfigFile(contextFileURL);
+					}
+					catch (Exception e) {
+						getLogger().error(
+								"Problem with the context file: " + e.getMessage());
+					}
+				}
+			}
+			else {
+				try {
+					URL contextFileURL = getContextXml(this.docBase);
+					if (contextFileURL != null) {
+						ctx.setConfigFile(contextFileURL);
+					}
+				}
+				catch (IOException e) {
+					getLogger().error("Problem with the context file: " + e.getMessage());
+				}
+			}
+
+			if (!this.configuredContext.isSessionPersistence()) {
+				ctx.addLifecycleListener(new DisableSessionPersistence());
+			}
+
+			return ctx;
+		}
+	}
+
+	/**
+	 * Stops the server when a context fails to start
+	 */
+	private static class StopOnFailure implements LifecycleListener {
+		@Override
+		public void lifecycleEvent(LifecycleEvent event) {
+			if (event.getLifecycle().getState() == LifecycleState.FAILED) {
+				((StandardServer) tomcat.getServer()).stopAwait();
+			}
+		}
+	}
+
+	/**
+	 * Disables the session persistence of the StandardManager after the context started
+	 */
+	private static class DisableSessionPersistence implements LifecycleListener {
+		@Override
+		public void lifecycleEvent(LifecycleEvent event) {
+			if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+				Manager manager = ((Context) event.getLifecycle()).getManager();
+				if (manager instanceof StandardManager) {
+					((StandardManager) manager).setPathname(null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes old extract directories with a low priority while Tomcat starts. The
+	 * thread does not keep the JVM alive, a directory that is not completely deleted is
+	 * deleted again on the next start.
+	 */
+	private static class DeleteDirectoriesThread extends Thread {
+		private final List<Path> directories;
+
+		DeleteDirectoriesThread(List<Path> directories) {
+			super("DeleteOldExtractDirectories");
+			this.directories = directories;
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+
+		@Override
+		public void run() {
+			for (Path directory : this.directories) {
+				long start = System.nanoTime();
+				try {
+					Files.walkFileTree(directory, new DeleteDirectory());
+					getLogger().info(String.format("Deleted %s in %d ms", directory,
+							TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+				}
+				catch (IOException e) {
+					getLogger().warn("Deleting " + directory + " failed", e);
+				}
+			}
+		}
+	}
+
 	private static class RunnerShutdownHook extends Thread {
 		@Override
 		public void run() {
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Directory with expanded WARs that is shared by all runners on a host. Every WAR is
+ * expanded into a directory named after the hash of its content, the directories are
+ * never changed after they are created.
+ * <p>
+ * A WAR is expanded into a temporary directory first and then renamed with an atomic
+ * move. When several runners start at the same time each of them may expand the WAR,
+ * the first rename wins and the others delete their copy.
+ * <p>
+ * The temporary directories end with {@link #TEMP_SUFFIX} and a random number. The
+ * directories of runners that were killed during the expansion are deleted on the
+ * next start, once they are older than {@link #STALE_TEMP_DIRECTORY_AGE}. Younger
+ * ones may still be written by a runner that starts at the same time.
+ */
+public class SharedWarCache {
+
+	static final String TEMP_SUFFIX = ".tmp";
+
+	static final long STALE_TEMP_DIRECTORY_AGE = TimeUnit.HOURS.toMillis(1);
+
+	private final Path directory;
+
+	private final int threads;
+
+	private int expandedCount;
+
+	public SharedWarCache(Path directory, int threads) {
+		this.directory = directory;
+		this.threads = threads;
+	}
+
+	/**
+	 * Returns the directories of the WARs in the cache by name of the WAR entry. WARs
+	 * that are not in the cache yet are expanded from the jar.
+	 *
+	 * @param jarFile the application jar, closed when the method returns
+	 * @param entryHashes the hashes of the entries of the application jar
+	 */
+	public Map<String, Path> populate(ZipFile jarFile, Map<String, String> entryHashes)
+			throws IOException {
+		Files.createDirectories(this.directory);
+		deleteStaleTempDirectories();
+
+		Map<String, Path> warDirectories = new LinkedHashMap<>();
+		Map<Path, Path> expanded = new LinkedHashMap<>();
+		try (JarExtractor extractor = new JarExtractor(jarFile, this.threads)) {
+			for (Map.Entry<String, String> entry : entryHashes.entrySet()) {
+				String entryName = entry.getKey();
+				ZipEntry warEntry = jarFile.getEntry(entryName);
+				if (!entryName.endsWith(".war")
+						|| entryName.startsWith(Runner.EXTRA_RESOURCES_DIR + "/")
+						|| warEntry == null) {
+					continue;
+				}
+
+				Path warDirectory = this.directory.resolve(entry.getValue());
+				warDirectories.put(entryName, warDirectory);
+				if (!Files.isDirectory(warDirectory)) {
+					Path tempDirectory = Files.createTempDirectory(this.directory,
+							entry.getValue() + TEMP_SUFFIX);
+					extractor.expand(warEntry, tempDirectory);
+					expanded.put(tempDirectory, warDirectory);
+				}
+			}
+			extractor.await();
+		}
+
+		for (Map.Entry<Path, Path> entry : expanded.entrySet()) {
+			try {
+				Files.move(entry.getKey(), entry.getValue(),
+						StandardCopyOption.ATOMIC_MOVE);
+				this.expandedCount++;
+			}
+			catch (IOException e) {
+				if (!Files.isDirectory(entry.getValue())) {
+					throw e;
+				}
+				// another runner expanded the same WAR in the meantime
+				Files.walkFileTree(entry.getKey(), new DeleteDirectory());
+			}
+		}
+
+		return warDirectories;
+	}
+
+	/**
+	 * Deletes the temporary directories that are left over from expansions that did
+	 * not finish. A directory that can not be deleted is tried again on the next start.
+	 */
+	private void deleteStaleTempDirectories() throws IOException {
+		long staleBefore = System.currentTimeMillis() - STALE_TEMP_DIRECTORY_AGE;
+		try (DirectoryStream<Path> tempDirectories = Files
+				.newDirectoryStream(this.directory, "*" + TEMP_SUFFIX + "*")) {
+			for (Path tempDirectory : tempDirectories) {
+				try {
+					if (Files.getLastModifiedTime(tempDirectory)
+							.toMillis() < staleBefore) {
+						Files.walkFileTree(tempDirectory, new DeleteDirectory());
+					}
+				}
+				catch (IOException e) {
+					// deleted by another runner or still in use
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of WARs that this runner added to the cache
+	 */
+	public int getExpandedCount() {
+		return this.expandedCount;
+	}
+
+}
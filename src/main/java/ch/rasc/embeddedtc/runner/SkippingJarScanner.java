@@ -0,0 +1,182 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.servlet.ServletContext;
+
+import org.apache.tomcat.JarScanFilter;
+import org.apache.tomcat.JarScanType;
+import org.apache.tomcat.JarScanner;
+import org.apache.tomcat.JarScannerCallback;
+import org.apache.tomcat.util.scan.StandardJarScanFilter;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+
+/**
+ * JarScanner that does not look into the jars of an embedded WAR that the plugin found
+ * to contain no web fragments, TLDs, static resources or classes that the annotation
+ * scan of the ContextConfig is interested in.
+ * <p>
+ * The list is written by the plugin into the directory {@link #DIRECTORY} of the
+ * executable jar, one file per WAR. The first line is the hash of the WAR, the other
+ * lines are the names of the jars in WEB-INF/lib that can be skipped.
+ */
+public class SkippingJarScanner implements JarScanner {
+
+	public static final String DIRECTORY = "jarsToSkip";
+
+	private final StandardJarScanner delegate = new StandardJarScanner();
+
+	private final Set<String> jarsToSkip;
+
+	private SkippingJarScanner(Set<String> jarsToSkip) {
+		this.jarsToSkip = jarsToSkip;
+		setJarScanFilter(new StandardJarScanFilter());
+	}
+
+	/**
+	 * Returns a scanner for the embedded WAR or null if the executable jar does not
+	 * contain a list for this WAR or the list was created for a different WAR.
+	 */
+	public static SkippingJarScanner forWar(Path war) throws IOException {
+		return read(war.getFileName().toString(), hash(war));
+	}
+
+	/**
+	 * Returns a scanner for an embedded WAR that the runner expanded directly from the
+	 * executable jar or null if the executable jar does not contain a list for this
+	 * WAR. The hash is not checked, the list and the WAR come from the same jar.
+	 */
+	public static SkippingJarScanner forExpandedWar(String warFileName)
+			throws IOException {
+		return read(warFileName, null);
+	}
+
+	private static SkippingJarScanner read(String warFileName, String expectedHash)
+			throws IOException {
+		String resource = "/" + getEntryName(warFileName);
+		try (InputStream is = SkippingJarScanner.class.getResourceAsStream(resource)) {
+			if (is == null) {
+				return null;
+			}
+
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(is, StandardCharsets.UTF_8));
+			String hash = reader.readLine();
+			if (expectedHash != null && !expectedHash.equals(hash)) {
+				return null;
+			}
+
+			Set<String> jarsToSkip = new HashSet<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					jarsToSkip.add(line);
+				}
+			}
+			return new SkippingJarScanner(jarsToSkip);
+		}
+	}
+
+	/**
+	 * Returns the name of the entry in the executable jar that contains the list of the
+	 * WAR
+	 */
+	public static String getEntryName(String warFileName) {
+		return DIRECTORY + "/" + warFileName + ".txt";
+	}
+
+	/**
+	 * Hash over name, CRC and size of all entries of the WAR
+	 */
+	public static String hash(Path war) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try (ZipFile zipFile = new ZipFile(war.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				md.update((entry.getName() + "|" + entry.getCrc() + "|" + entry.getSize()
+						+ "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		byte[] digest = md.digest();
+		return String.format("%0" + digest.length * 2 + "x", new BigInteger(1, digest));
+	}
+
+	public int getJarsToSkipCount() {
+		return this.jarsToSkip.size();
+	}
+
+	@Override
+	public void scan(JarScanType scanType, ServletContext context,
+			JarScannerCallback callback) {
+		this.delegate.scan(scanType, context, callback);
+	}
+
+	@Override
+	public JarScanFilter getJarScanFilter() {
+		return ((SkippingJarScanFilter) this.delegate.getJarScanFilter()).filter;
+	}
+
+	@Override
+	public void setJarScanFilter(JarScanFilter jarScanFilter) {
+		this.delegate.setJarScanFilter(
+				new SkippingJarScanFilter(this.jarsToSkip, jarScanFilter));
+	}
+
+	/**
+	 * Skips the jars in the list and asks the configured filter for all other jars
+	 */
+	private static class SkippingJarScanFilter implements JarScanFilter {
+		private final Set<String> jarsToSkip;
+
+		private final JarScanFilter filter;
+
+		SkippingJarScanFilter(Set<String> jarsToSkip, JarScanFilter filter) {
+			this.jarsToSkip = jarsToSkip;
+			this.filter = filter;
+		}
+
+		@Override
+		public boolean check(JarScanType jarScanType, String jarName) {
+			return !this.jarsToSkip.contains(jarName)
+					&& this.filter.check(jarScanType, jarName);
+		}
+	}
+
+}
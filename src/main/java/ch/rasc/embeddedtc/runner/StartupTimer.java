@@ -0,0 +1,185 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Measures the phases of the startup of the runner and the start of every context.
+ * <p>
+ * A phase ends when the next one begins. The start of the contexts is measured with a
+ * lifecycle listener, the contexts may start in parallel.
+ */
+public class StartupTimer {
+
+	private final long startTime = System.nanoTime();
+
+	private final Date startDate = new Date();
+
+	private long phaseStart = this.startTime;
+
+	private String phase;
+
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+
+	private final Map<String, Long> contexts = Collections
+			.synchronizedMap(new LinkedHashMap<String, Long>());
+
+	private long endTime = -1;
+
+	/**
+	 * Ends the current phase and begins a new one
+	 */
+	public void begin(String name) {
+		long now = System.nanoTime();
+		endPhase(now);
+		this.phase = name;
+		this.phaseStart = now;
+	}
+
+	/**
+	 * Ends the current phase and the measurement
+	 */
+	public void end() {
+		this.endTime = System.nanoTime();
+		endPhase(this.endTime);
+		this.phase = null;
+	}
+
+	private void endPhase(long now) {
+		if (this.phase != null) {
+			Long time = this.phases.get(this.phase);
+			this.phases.put(this.phase,
+					(time != null ? time : 0L) + now - this.phaseStart);
+		}
+	}
+
+	/**
+	 * Adds a listener to the context that measures its start
+	 */
+	public void addContext(Context ctx) {
+		ctx.addLifecycleListener(new ContextTimer(this.contexts));
+	}
+
+	/**
+	 * Returns the summary as a table
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder("Startup times\n");
+		appendRow(sb, "jvm", getJvmStartupMillis());
+		for (Map.Entry<String, Long> entry : this.phases.entrySet()) {
+			appendRow(sb, entry.getKey(), toMillis(entry.getValue()));
+		}
+		for (Map.Entry<String, Long> entry : this.contexts.entrySet()) {
+			appendRow(sb, "  context " + entry.getKey(), toMillis(entry.getValue()));
+		}
+		appendRow(sb, "total", toMillis(this.endTime - this.startTime));
+		return sb.toString();
+	}
+
+	private static void appendRow(StringBuilder sb, String name, double millis) {
+		sb.append(String.format(Locale.ENGLISH, "  %-40s %12.1f ms%n", name, millis));
+	}
+
+	/**
+	 * Appends the measurement as a YAML document to the report file
+	 *
+	 * @param timestamp the WAR_TIMESTAMP of the jar, identifies the release
+	 */
+	public void writeReport(Path reportFile, String timestamp) throws IOException {
+		Map<String, Object> report = new LinkedHashMap<>();
+		report.put("date", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX",
+				Locale.ENGLISH).format(this.startDate));
+		report.put("timestamp", timestamp);
+		report.put("jvmMillis", getJvmStartupMillis());
+		report.put("totalMillis", toMillis(this.endTime - this.startTime));
+
+		Map<String, Object> phasesReport = new LinkedHashMap<>();
+		for (Map.Entry<String, Long> entry : this.phases.entrySet()) {
+			phasesReport.put(entry.getKey(), toMillis(entry.getValue()));
+		}
+		report.put("phases", phasesReport);
+
+		Map<String, Object> contextsReport = new LinkedHashMap<>();
+		for (Map.Entry<String, Long> entry : this.contexts.entrySet()) {
+			contextsReport.put(entry.getKey(), toMillis(entry.getValue()));
+		}
+		report.put("contexts", contextsReport);
+
+		DumperOptions options = new DumperOptions();
+		options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+		options.setExplicitStart(true);
+
+		try (Writer writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			new Yaml(options).dump(report, writer);
+		}
+	}
+
+	/**
+	 * Time from the start of the JVM to the creation of this timer
+	 */
+	private double getJvmStartupMillis() {
+		long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+		return this.startDate.getTime() - jvmStart;
+	}
+
+	private static double toMillis(long nanos) {
+		return Math.round(nanos / 100000.0) / 10.0;
+	}
+
+	private static class ContextTimer implements LifecycleListener {
+		private final Map<String, Long> contexts;
+
+		private long start;
+
+		ContextTimer(Map<String, Long> contexts) {
+			this.contexts = contexts;
+		}
+
+		@Override
+		public void lifecycleEvent(LifecycleEvent event) {
+			if (Lifecycle.BEFORE_START_EVENT.equals(event.getType())) {
+				this.start = System.nanoTime();
+			}
+			else if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+				Context ctx = (Context) event.getLifecycle();
+				String name = ctx.getPath().isEmpty() ? "/" : ctx.getPath();
+				this.contexts.put(name, System.nanoTime() - this.start);
+			}
+		}
+	}
+
+}
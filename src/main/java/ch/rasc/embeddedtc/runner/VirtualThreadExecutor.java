@@ -0,0 +1,118 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.core.StandardThreadExecutor;
+
+/**
+ * Executor that runs every task on a new virtual thread when the JVM supports virtual
+ * threads (Java 21 and later). On older JVMs it falls back to the thread pool of the
+ * StandardThreadExecutor and its maxThreads, minSpareThreads and other properties.
+ * <p>
+ * The virtual threads are created through reflection, the runner is compiled for
+ * Java 7.
+ */
+public class VirtualThreadExecutor extends StandardThreadExecutor {
+
+	private ExecutorService virtualThreadExecutor;
+
+	@Override
+	protected void startInternal() throws LifecycleException {
+		ExecutorService virtualExecutor = createVirtualThreadExecutor();
+		if (virtualExecutor == null) {
+			Runner.getLogger().info("Virtual threads are not supported by this JVM, "
+					+ "executor " + getName() + " uses a thread pool");
+			super.startInternal();
+			return;
+		}
+
+		this.virtualThreadExecutor = virtualExecutor;
+		Runner.getLogger().info("Executor " + getName() + " uses virtual threads");
+		setState(LifecycleState.STARTING);
+	}
+
+	@Override
+	protected void stopInternal() throws LifecycleException {
+		if (this.virtualThreadExecutor == null) {
+			super.stopInternal();
+			return;
+		}
+
+		setState(LifecycleState.STOPPING);
+		this.virtualThreadExecutor.shutdownNow();
+		this.virtualThreadExecutor = null;
+	}
+
+	/**
+	 * @deprecated not called by the connectors, only overridden because the pool of the
+	 * superclass is not started in virtual-thread mode
+	 */
+	@Deprecated
+	@Override
+	public void execute(Runnable command, long timeout, TimeUnit unit) {
+		if (this.virtualThreadExecutor != null) {
+			// never queued, the timeout does not apply
+			execute(command);
+		}
+		else {
+			super.execute(command, timeout, unit);
+		}
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		ExecutorService virtualExecutor = this.virtualThreadExecutor;
+		if (virtualExecutor != null) {
+			virtualExecutor.execute(command);
+		}
+		else if (getState() == LifecycleState.STARTED
+				|| getState() == LifecycleState.STARTING) {
+			super.execute(command);
+		}
+		else {
+			throw new RejectedExecutionException("Executor " + getName()
+					+ " is not started");
+		}
+	}
+
+	/**
+	 * Returns an executor that starts a virtual thread for every task or null if the JVM
+	 * does not support virtual threads
+	 */
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		}
+		catch (NoSuchMethodException e) {
+			return null;
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			// preview feature that is not enabled
+			Runner.getLogger().warn("Creating virtual threads failed", e);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import java.util.Collections;
+import java.util.List;
+
+public class Warmup {
+	private List<String> requests = Collections.emptyList();
+
+	private int concurrency = 1;
+
+	private int iterations = 1;
+
+	private int timeBudget = 60;
+
+	/**
+	 * Paths of the requests including the context path, optionally prefixed with the
+	 * method, e.g. "/app/index.html" or "HEAD /app/status"
+	 */
+	public List<String> getRequests() {
+		return this.requests;
+	}
+
+	public void setRequests(List<String> requests) {
+		this.requests = requests;
+	}
+
+	public int getConcurrency() {
+		return this.concurrency;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Number of times every request is sent
+	 */
+	public int getIterations() {
+		return this.iterations;
+	}
+
+	public void setIterations(int iterations) {
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Seconds after which the warmup ends even if not all requests are sent
+	 */
+	public int getTimeBudget() {
+		return this.timeBudget;
+	}
+
+	public void setTimeBudget(int timeBudget) {
+		this.timeBudget = timeBudget;
+	}
+
+}
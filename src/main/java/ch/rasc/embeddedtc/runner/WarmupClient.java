@@ -0,0 +1,151 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the warmup requests to a connector that only listens on the loopback
+ * interface, before the configured connectors accept traffic.
+ */
+public class WarmupClient {
+
+	private final Warmup warmup;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private final AtomicInteger sent = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private long deadline;
+
+	public WarmupClient(Warmup warmup) {
+		this.warmup = warmup;
+	}
+
+	/**
+	 * Sends the requests to the port on the loopback interface. Returns when all
+	 * requests are sent or the time budget is used up.
+	 */
+	public void run(int port) throws InterruptedException {
+		long start = System.nanoTime();
+		this.deadline = start + TimeUnit.SECONDS.toNanos(this.warmup.getTimeBudget());
+
+		int concurrency = Math.max(1, this.warmup.getConcurrency());
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		try {
+			for (int i = 0; i < concurrency; i++) {
+				executor.execute(new Worker(this, port));
+			}
+			executor.shutdown();
+			if (!executor.awaitTermination(this.warmup.getTimeBudget(),
+					TimeUnit.SECONDS)) {
+				Runner.getLogger().warn("The warmup did not finish within "
+						+ this.warmup.getTimeBudget() + " seconds");
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		Runner.getLogger().info(String.format(
+				"Warmed up with %d requests in %d ms (%d failed)", this.sent.get(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+				this.failed.get()));
+	}
+
+	/**
+	 * Returns the next request or null when all requests are sent or the time budget is
+	 * used up
+	 */
+	String nextRequest() {
+		int total = this.warmup.getRequests().size() * this.warmup.getIterations();
+		int index = this.next.getAndIncrement();
+		if (index >= total || System.nanoTime() - this.deadline > 0) {
+			return null;
+		}
+		return this.warmup.getRequests().get(index % this.warmup.getRequests().size());
+	}
+
+	void send(int port, String request) {
+		String method = "GET";
+		String path = request.trim();
+		int space = path.indexOf(' ');
+		if (space != -1) {
+			method = path.substring(0, space);
+			path = path.substring(space + 1).trim();
+		}
+
+		this.sent.incrementAndGet();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL("http",
+					"127.0.0.1", port, path).openConnection();
+			connection.setRequestMethod(method);
+			int remaining = (int) Math.max(1,
+					TimeUnit.NANOSECONDS.toMillis(this.deadline - System.nanoTime()));
+			connection.setConnectTimeout(remaining);
+			connection.setReadTimeout(remaining);
+
+			int status = connection.getResponseCode();
+			InputStream is = status < 400 ? connection.getInputStream()
+					: connection.getErrorStream();
+			if (is != null) {
+				// the response is read completely, the connection is reused
+				try (InputStream body = is) {
+					byte[] buf = new byte[8192];
+					while (body.read(buf) != -1) {
+						// discard
+					}
+				}
+			}
+			if (status >= 500) {
+				this.failed.incrementAndGet();
+			}
+		}
+		catch (IOException e) {
+			this.failed.incrementAndGet();
+		}
+	}
+
+	private static class Worker implements Runnable {
+		private final WarmupClient client;
+
+		private final int port;
+
+		Worker(WarmupClient client, int port) {
+			this.client = client;
+			this.port = port;
+		}
+
+		@Override
+		public void run() {
+			String request;
+			while (!Thread.currentThread().isInterrupted()
+					&& (request = this.client.nextRequest()) != null) {
+				this.client.send(this.port, request);
+			}
+		}
+	}
+
+}
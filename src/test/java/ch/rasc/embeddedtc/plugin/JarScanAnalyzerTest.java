@@ -0,0 +1,209 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JarScanAnalyzerTest {
+
+	private static final String SCI_SERVICE = "META-INF/services/"
+			+ "javax.servlet.ServletContainerInitializer";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void skipsJarsWithoutScanTargets() throws IOException {
+		Map<String, byte[]> classes = compile("lib/Plain.java",
+				"package lib; public class Plain {}", "lib/Failure.java",
+				"package lib; public class Failure extends RuntimeException {}");
+
+		File war = war(entries("WEB-INF/lib/plain.jar", jar(classes),
+				"WEB-INF/lib/fragment.jar",
+				jar(entries("META-INF/web-fragment.xml", bytes("<web-fragment/>"))),
+				"WEB-INF/lib/tags.jar",
+				jar(entries("META-INF/tags.tld", bytes("<taglib/>")))));
+
+		assertEquals(Arrays.asList("plain.jar"), analyze(war));
+	}
+
+	@Test
+	public void scansJarsWithWebAnnotations() throws IOException {
+		Map<String, byte[]> classes = compile("lib/Hello.java",
+				"package lib; @javax.servlet.annotation.WebServlet(\"/hello\") "
+						+ "public class Hello extends javax.servlet.http.HttpServlet {}");
+
+		File war = war(entries("WEB-INF/lib/hello.jar", jar(classes)));
+
+		assertEquals(Collections.emptyList(), analyze(war));
+	}
+
+	@Test
+	public void scansJarsWithSubclassesOfContainerClasses() throws IOException {
+		// HttpServlet is not in the WAR, only its super class implements Servlet
+		Map<String, byte[]> initializer = compile("app/Initializer.java",
+				"package app; @javax.servlet.annotation.HandlesTypes("
+						+ "javax.servlet.Servlet.class) public class Initializer "
+						+ "implements javax.servlet.ServletContainerInitializer {"
+						+ "public void onStartup(java.util.Set<Class<?>> c, "
+						+ "javax.servlet.ServletContext ctx) {}}");
+		Map<String, byte[]> servlet = compile("lib/MyServlet.java",
+				"package lib; public class MyServlet "
+						+ "extends javax.servlet.http.HttpServlet {}");
+		Map<String, byte[]> plain = compile("other/Failure.java",
+				"package other; public class Failure extends RuntimeException {}");
+
+		Map<String, byte[]> warEntries = entries("WEB-INF/lib/servlets.jar",
+				jar(servlet), "WEB-INF/lib/plain.jar", jar(plain),
+				"WEB-INF/classes/" + SCI_SERVICE, bytes("app.Initializer\n"));
+		warEntries.put("WEB-INF/classes/app/Initializer.class",
+				initializer.get("app/Initializer.class"));
+
+		assertEquals(Arrays.asList("plain.jar"), analyze(war(warEntries)));
+	}
+
+	@Test
+	public void scansJarsWithSubclassesOfClassesOutsideTheWar() throws IOException {
+		Map<String, byte[]> initializer = compile("app/Initializer.java",
+				"package app; @javax.servlet.annotation.HandlesTypes(app.Plugin.class) "
+						+ "public class Initializer "
+						+ "implements javax.servlet.ServletContainerInitializer {"
+						+ "public void onStartup(java.util.Set<Class<?>> c, "
+						+ "javax.servlet.ServletContext ctx) {}}",
+				"app/Plugin.java", "package app; public interface Plugin {}",
+				"other/Base.java",
+				"package other; public class Base implements app.Plugin {}",
+				"lib/Impl.java", "package lib; public class Impl extends other.Base {}",
+				"lib2/Direct.java",
+				"package lib2; public class Direct implements app.Plugin {}",
+				"lib3/Failure.java",
+				"package lib3; public class Failure extends RuntimeException {}");
+
+		Map<String, byte[]> warEntries = new LinkedHashMap<>();
+		warEntries.put("WEB-INF/lib/impl.jar",
+				jar(entries("lib/Impl.class", initializer.get("lib/Impl.class"))));
+		warEntries.put("WEB-INF/lib/direct.jar", jar(
+				entries("lib2/Direct.class", initializer.get("lib2/Direct.class"))));
+		warEntries.put("WEB-INF/lib/plain.jar", jar(entries("lib3/Failure.class",
+				initializer.get("lib3/Failure.class"))));
+		warEntries.put("WEB-INF/classes/" + SCI_SERVICE, bytes("app.Initializer"));
+		warEntries.put("WEB-INF/classes/app/Initializer.class",
+				initializer.get("app/Initializer.class"));
+		warEntries.put("WEB-INF/classes/app/Plugin.class",
+				initializer.get("app/Plugin.class"));
+
+		// other.Base is not in the WAR, its super types are unknown
+		assertEquals(Arrays.asList("plain.jar"), analyze(war(warEntries)));
+	}
+
+	@Test
+	public void doesNotAnalyzeWarsWithMissingInitializers() throws IOException {
+		File war = war(entries("WEB-INF/classes/" + SCI_SERVICE,
+				bytes("app.Missing\n")));
+		assertNull(analyze(war));
+	}
+
+	private List<String> analyze(File war) throws IOException {
+		return new JarScanAnalyzer(Collections.<File>emptyList(), new SystemStreamLog())
+				.findJarsToSkip(war);
+	}
+
+	/**
+	 * Compiles the sources, given as pairs of file name and source, and returns the
+	 * class files by their path
+	 */
+	private Map<String, byte[]> compile(String... sources) throws IOException {
+		Path sourceDir = this.folder.newFolder().toPath();
+		Path classesDir = this.folder.newFolder().toPath();
+		List<String> args = new ArrayList<>(Arrays.asList("-d", classesDir.toString(),
+				"-classpath", System.getProperty("java.class.path")));
+		for (int i = 0; i < sources.length; i += 2) {
+			Path file = sourceDir.resolve(sources[i]);
+			Files.createDirectories(file.getParent());
+			Files.write(file, bytes(sources[i + 1]));
+			args.add(file.toString());
+		}
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertEquals(0, compiler.run(null, null, null, args.toArray(new String[0])));
+
+		Map<String, byte[]> classes = new LinkedHashMap<>();
+		for (int i = 0; i < sources.length; i += 2) {
+			String name = sources[i].replace(".java", ".class");
+			classes.put(name, Files.readAllBytes(classesDir.resolve(name)));
+		}
+		return classes;
+	}
+
+	private File war(Map<String, byte[]> entries) throws IOException {
+		File war = this.folder.newFile("test.war");
+		try (OutputStream out = new FileOutputStream(war)) {
+			out.write(jar(entries));
+		}
+		return war;
+	}
+
+	private static byte[] jar(Map<String, byte[]> entries) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				zos.putNextEntry(new ZipEntry(entry.getKey()));
+				zos.write(entry.getValue());
+				zos.closeEntry();
+			}
+		}
+		return bos.toByteArray();
+	}
+
+	private static Map<String, byte[]> entries(Object... nameAndContent) {
+		Map<String, byte[]> entries = new LinkedHashMap<>();
+		for (int i = 0; i < nameAndContent.length; i += 2) {
+			entries.put((String) nameAndContent[i], (byte[]) nameAndContent[i + 1]);
+		}
+		return entries;
+	}
+
+	private static byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+
+}
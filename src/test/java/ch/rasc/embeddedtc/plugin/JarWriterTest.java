@@ -0,0 +1,357 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.plugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JarWriterTest {
+
+	private static final long TIME = 1511172930000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void mergesServiceFiles() throws IOException {
+		File a = jar("META-INF/services/x.Service", "x.A\n# comment\nx.Shared");
+		File b = jar("META-INF/services/x.Service", "x.Shared\nx.B\n");
+
+		Output output = write(1, a, b);
+
+		assertEquals(Arrays.asList("META-INF/services/x.Service"), output.names);
+		assertEquals("x.A\nx.Shared\nx.B\n",
+				output.entries.get("META-INF/services/x.Service"));
+	}
+
+	@Test
+	public void contentHashCoversServiceFiles() throws IOException {
+		File a = jar("a/A.class", "A", "META-INF/services/x.Service", "x.A");
+		File b = jar("META-INF/services/x.Service", "x.B");
+		File c = jar("META-INF/services/x.Service", "x.C");
+
+		Output first = write(1, a, b);
+		Output second = write(1, a, c);
+
+		assertEquals(first.names, second.names);
+		assertNotEquals(first.hash, second.hash);
+		assertEquals(first.hash, write(1, a, b).hash);
+	}
+
+	@Test
+	public void copiesRawEntriesWithoutRecompressing() throws IOException {
+		File source = this.folder.newFile();
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(source))) {
+			zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+			zos.write("Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+			zos.putNextEntry(new ZipEntry("a/deflated.txt"));
+			zos.write(repeat("deflated ", 1000));
+			zos.setLevel(Deflater.BEST_SPEED);
+			zos.putNextEntry(new ZipEntry("a/fast.txt"));
+			zos.write(repeat("fast ", 1000));
+			ZipEntry stored = new ZipEntry("a/stored.txt");
+			byte[] content = repeat("stored ", 10);
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			stored.setMethod(ZipEntry.STORED);
+			stored.setSize(content.length);
+			stored.setCrc(crc.getValue());
+			zos.putNextEntry(stored);
+			zos.write(content);
+		}
+
+		Output output = write(1, source);
+
+		assertEquals(Arrays.asList("a/deflated.txt", "a/fast.txt", "a/stored.txt"),
+				output.names);
+		try (ZipFile in = new ZipFile(source);
+				ZipFile out = new ZipFile(output.file)) {
+			for (String name : output.names) {
+				ZipArchiveEntry expected = in.getEntry(name);
+				ZipArchiveEntry actual = out.getEntry(name);
+				assertEquals(name, expected.getMethod(), actual.getMethod());
+				assertEquals(name, expected.getCrc(), actual.getCrc());
+				assertEquals(name, expected.getCompressedSize(),
+						actual.getCompressedSize());
+				assertArrayEquals(name,
+						IOUtils.toByteArray(in.getRawInputStream(expected)),
+						IOUtils.toByteArray(out.getRawInputStream(actual)));
+			}
+		}
+		assertEquals(TIME, output.times.get("a/stored.txt").longValue());
+	}
+
+	@Test
+	public void keepsTheFirstEntryOfAPath() throws IOException {
+		File a = jar("a/A.class", "first", "META-INF/NOTICE", "notice");
+		File b = jar("a/A.class", "second", "META-INF/NOTICE", "notice", "b/B.class",
+				"B");
+
+		Output output = write(1, a, b);
+
+		assertEquals(Arrays.asList("a/A.class", "META-INF/NOTICE", "b/B.class"),
+				output.names);
+		assertEquals("first", output.entries.get("a/A.class"));
+	}
+
+	@Test
+	public void reportsConflictsButNotDuplicates() throws IOException {
+		File a = jar("a/A.class", "A", "a/C.class", "first", "META-INF/LICENSE", "a",
+				"META-INF/maven/x/pom.properties", "a");
+		File b = jar("a/A.class", "A", "a/C.class", "second", "META-INF/LICENSE", "b",
+				"META-INF/maven/x/pom.properties", "b");
+		RecordingLog log = new RecordingLog();
+
+		Output output = write(log, 1, a, b);
+
+		assertEquals("first", output.entries.get("a/C.class"));
+		assertEquals("a", output.entries.get("META-INF/LICENSE"));
+		assertEquals(2, log.warnings.size());
+		assertTrue(log.warnings.get(0).startsWith("Conflicting entry a/C.class"));
+		assertTrue(log.warnings.get(1)
+				.startsWith("Conflicting entry META-INF/maven/x/pom.properties"));
+		assertEquals(Arrays.asList("Dropped 1 duplicate entries, "
+				+ "merged 0 service files, found 2 conflicts"), log.infos);
+	}
+
+	@Test
+	public void writesTheSameEntriesOnMultipleThreads() throws IOException {
+		File small = this.folder.newFile();
+		Files.write(small.toPath(), repeat("small ", 100));
+		// bigger than the memory threshold of the scatter stores
+		File big = this.folder.newFile();
+		Files.write(big.toPath(), repeat("big ", 500000));
+		File dependency = jar("d/D.class", "D", "META-INF/services/x.Service", "x.D");
+
+		List<Output> outputs = new ArrayList<>();
+		for (int threads : new int[] { 1, 4 }) {
+			File file = this.folder.newFile();
+			Output output = new Output();
+			try (OutputStream os = new FileOutputStream(file);
+					JarWriter writer = new JarWriter(os, threads, TIME,
+							new SystemStreamLog())) {
+				writer.addFile("big.txt", big.toPath());
+				writer.addFile("big.war", big.toPath(), true);
+				for (int i = 0; i < 20; i++) {
+					writer.addFile("small" + i + ".txt", small.toPath(), i % 2 == 0);
+				}
+				writer.addResource("conf/web.xml", "/conf/web.xml");
+				try (ZipFile zipFile = new ZipFile(dependency)) {
+					writer.addRawEntries(zipFile, dependency.getName());
+				}
+				writer.addBytes("bytes.txt", repeat("bytes ", 10));
+				output.hash = writer.getContentHash();
+			}
+			output.read(file);
+			outputs.add(output);
+		}
+
+		Output sequential = outputs.get(0);
+		Output parallel = outputs.get(1);
+		assertEquals(26, sequential.names.size());
+		assertEquals(sequential.names, parallel.names);
+		assertEquals(sequential.entries, parallel.entries);
+		assertEquals(sequential.hash, parallel.hash);
+		try (ZipFile in = new ZipFile(sequential.file);
+				ZipFile out = new ZipFile(parallel.file)) {
+			for (String name : sequential.names) {
+				assertEquals(name, in.getEntry(name).getMethod(),
+						out.getEntry(name).getMethod());
+			}
+			assertEquals(ZipArchiveEntry.STORED, out.getEntry("big.war").getMethod());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void reportsFailuresOfTheCompressors() throws IOException {
+		try (OutputStream os = new FileOutputStream(this.folder.newFile());
+				JarWriter writer = new JarWriter(os, 4, TIME, new SystemStreamLog())) {
+			for (int i = 0; i < 10; i++) {
+				writer.addResource("missing" + i, "/missing");
+			}
+			writer.getContentHash();
+		}
+	}
+
+	@Test
+	public void deletesTheStoresOfPendingEntriesOnFailure() throws IOException {
+		File big = this.folder.newFile();
+		Files.write(big.toPath(), repeat("big ", 500000));
+		Set<String> tempFiles = tempFiles();
+
+		JarWriter writer = new JarWriter(new FileOutputStream(this.folder.newFile()), 2,
+				TIME, new SystemStreamLog());
+		writer.addResource("missing", "/missing");
+		writer.addFile("big1.txt", big.toPath());
+		writer.addFile("big2.txt", big.toPath());
+		try {
+			// writes the pending entries and fails with the first one
+			writer.close();
+			fail();
+		}
+		catch (IOException e) {
+			// expected
+		}
+
+		assertEquals(tempFiles, tempFiles());
+	}
+
+	private static Set<String> tempFiles() {
+		Set<String> names = new HashSet<>();
+		String[] files = new File(System.getProperty("java.io.tmpdir")).list();
+		for (String name : files) {
+			if (name.startsWith("embeddedtc") && name.endsWith(".tmp")) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Creates a jar with the entries, given as pairs of name and content
+	 */
+	private File jar(String... entries) throws IOException {
+		File file = this.folder.newFile();
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+			for (int i = 0; i < entries.length; i += 2) {
+				zos.putNextEntry(new ZipEntry(entries[i]));
+				zos.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+				zos.closeEntry();
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Writes the raw entries of the jars with a JarWriter, computes the content hash
+	 * and returns the written jar
+	 */
+	private Output write(int threads, File... jars) throws IOException {
+		return write(new SystemStreamLog(), threads, jars);
+	}
+
+	private Output write(Log log, int threads, File... jars) throws IOException {
+		File file = this.folder.newFile();
+		Output output = new Output();
+		try (OutputStream os = new FileOutputStream(file);
+				JarWriter writer = new JarWriter(os, threads, TIME, log)) {
+			for (File jar : jars) {
+				try (ZipFile zipFile = new ZipFile(jar)) {
+					writer.addRawEntries(zipFile, jar.getName());
+				}
+			}
+			output.hash = writer.getContentHash();
+		}
+		output.read(file);
+		return output;
+	}
+
+	private static byte[] repeat(String text, int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			sb.append(text);
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static class RecordingLog extends SystemStreamLog {
+		final List<String> infos = new ArrayList<>();
+
+		final List<String> warnings = new ArrayList<>();
+
+		@Override
+		public void info(CharSequence content) {
+			this.infos.add(content.toString());
+		}
+
+		@Override
+		public void warn(CharSequence content) {
+			this.warnings.add(content.toString());
+		}
+	}
+
+	private static class Output {
+		File file;
+
+		String hash;
+
+		/**
+		 * Names of all entries in the order of the jar, with duplicates
+		 */
+		final List<String> names = new ArrayList<>();
+
+		final Map<String, String> entries = new LinkedHashMap<>();
+
+		final Map<String, Long> times = new LinkedHashMap<>();
+
+		void read(File jar) throws IOException {
+			this.file = jar;
+			try (ZipInputStream zis = new ZipInputStream(new FileInputStream(jar))) {
+				ZipEntry entry;
+				while ((entry = zis.getNextEntry()) != null) {
+					this.names.add(entry.getName());
+					this.entries.put(entry.getName(), read(zis));
+					this.times.put(entry.getName(), entry.getTime());
+				}
+			}
+		}
+
+		private static String read(InputStream is) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				bos.write(buffer, 0, n);
+			}
+			return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LazyContextValveTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Tomcat tomcat;
+
+	private LazyContextValve valve;
+
+	@Before
+	public void setUp() throws IOException {
+		this.tomcat = new Tomcat();
+		this.tomcat.setBaseDir(this.folder.getRoot().getAbsolutePath());
+		this.tomcat.setPort(0);
+		this.tomcat.setSilent(true);
+		this.valve = new LazyContextValve();
+		this.tomcat.getHost().getPipeline().addValve(this.valve);
+	}
+
+	@After
+	public void tearDown() throws LifecycleException {
+		this.tomcat.stop();
+		this.tomcat.destroy();
+	}
+
+	@Test
+	public void startsLazyContextOnFirstRequest() throws Exception {
+		CountingFactory lazy = addLazyContext("/a");
+		start();
+
+		assertEquals(0, lazy.created.get());
+		assertEquals("/a", get("/a/x"));
+		assertEquals("/a", get("/a/y"));
+		assertEquals(1, lazy.created.get());
+		assertEquals(404, status("/b/x"));
+	}
+
+	@Test
+	public void redirectsToContextRoot() throws Exception {
+		addLazyContext("/a");
+		start();
+
+		HttpURLConnection connection = open("/a?q=1");
+		connection.setInstanceFollowRedirects(false);
+		assertEquals(302, connection.getResponseCode());
+		assertEquals("/a/?q=1", connection.getHeaderField("Location"));
+	}
+
+	@Test
+	public void ignoresRequestsOfNestedContexts() throws Exception {
+		CountingFactory lazy = addLazyContext("/a");
+		addContext("/a/b");
+		start();
+
+		assertEquals("/a/b", get("/a/b/x"));
+		assertEquals(0, lazy.created.get());
+		assertEquals("/a", get("/a/x"));
+		assertEquals("/a/b", get("/a/b/x"));
+		assertEquals(1, lazy.created.get());
+	}
+
+	@Test
+	public void lazyRootContextIgnoresRequestsOfOtherContexts() throws Exception {
+		CountingFactory lazy = addLazyContext("");
+		addContext("/a");
+		start();
+
+		assertEquals("/a", get("/a/x"));
+		assertEquals(0, lazy.created.get());
+		assertEquals("", get("/x"));
+		assertEquals("/a", get("/a/x"));
+		assertEquals("", get("/y"));
+		assertEquals(1, lazy.created.get());
+	}
+
+	private CountingFactory addLazyContext(String path) {
+		CountingFactory factory = new CountingFactory(path);
+		this.valve.addContext(path, factory, 10, 0);
+		return factory;
+	}
+
+	private void addContext(String path) {
+		this.tomcat.getHost().addChild(createContext(path));
+	}
+
+	private void start() throws LifecycleException {
+		this.tomcat.start();
+	}
+
+	private String get(String path) throws IOException {
+		HttpURLConnection connection = open(path);
+		assertEquals(200, connection.getResponseCode());
+		try (InputStream is = connection.getInputStream()) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+			return new String(body.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private int status(String path) throws IOException {
+		return open(path).getResponseCode();
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		URL url = new URL("http://localhost:"
+				+ this.tomcat.getConnector().getLocalPort() + path);
+		return (HttpURLConnection) url.openConnection();
+	}
+
+	/**
+	 * A context with a servlet that responds with the context path
+	 */
+	private static Context createContext(String path) {
+		Context ctx = new StandardContext();
+		ctx.setName(path);
+		ctx.setPath(path);
+		ctx.addLifecycleListener(new Tomcat.FixContextListener());
+		Tomcat.addServlet(ctx, "path", new PathServlet());
+		ctx.addServletMappingDecoded("/", "path");
+		return ctx;
+	}
+
+	private static class CountingFactory implements LazyContextValve.ContextFactory {
+		final AtomicInteger created = new AtomicInteger();
+
+		private final String path;
+
+		CountingFactory(String path) {
+			this.path = path;
+		}
+
+		@Override
+		public Context create() {
+			this.created.incrementAndGet();
+			return createContext(this.path);
+		}
+	}
+
+	private static class PathServlet extends HttpServlet {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+				throws IOException {
+			resp.getWriter().print(req.getContextPath());
+		}
+	}
+
+}
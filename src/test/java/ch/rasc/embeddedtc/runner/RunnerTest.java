@@ -0,0 +1,207 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RunnerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path extractDir;
+
+	private Set<String> changedWars;
+
+	@Before
+	public void setUp() throws IOException {
+		this.extractDir = this.folder.newFolder("extract").toPath();
+		this.changedWars = new HashSet<>();
+	}
+
+	@Test
+	public void extractsAllEntriesWithoutLastHashes() throws IOException {
+		File jar = jar("a.war", war("a"), "extra/x.txt", "x", "Other.class", "c",
+				Runner.ENTRY_HASHES_FILENAME, "1 a.war\n1 extra/x.txt\n");
+
+		assertEquals(0, extract(jar, null, false, false));
+
+		assertEquals("x", read("extra/x.txt"));
+		assertTrue(Files.exists(this.extractDir.resolve("a.war")));
+		assertFalse(Files.exists(this.extractDir.resolve("Other.class")));
+		assertEquals(new HashSet<>(Arrays.asList(path("a.war"))), this.changedWars);
+	}
+
+	@Test
+	public void extractsOnlyChangedEntries() throws IOException {
+		write("a.war", "old a");
+		write("b.war", "old b");
+		write("c.war", "old c");
+		write("extra/x.txt", "old x");
+		write("extra/y.txt", "old y");
+
+		File jar = jar("a.war", war("a"), "b.war", war("b"), "extra/x.txt", "x",
+				"extra/y.txt", "y", Runner.ENTRY_HASHES_FILENAME,
+				"1 a.war\n2 b.war\n1 extra/x.txt\n2 extra/y.txt\n");
+		Map<String, String> lastEntryHashes = hashes("a.war", "1", "b.war", "1",
+				"c.war", "1", "extra/x.txt", "1", "extra/y.txt", "1");
+
+		assertEquals(2, extract(jar, lastEntryHashes, false, false));
+
+		assertEquals("old a", read("a.war"));
+		assertEquals("old x", read("extra/x.txt"));
+		assertEquals("y", read("extra/y.txt"));
+		assertFalse(Files.exists(this.extractDir.resolve("c.war")));
+		assertEquals(new HashSet<>(Arrays.asList(path("b.war"))), this.changedWars);
+	}
+
+	@Test
+	public void extractsEntriesWithoutHashAgain() throws IOException {
+		write("a.war", "old a");
+
+		File jar = jar("a.war", war("a"));
+
+		assertEquals(0, extract(jar, hashes("a.war", "1"), false, false));
+
+		assertFalse("old a".equals(read("a.war")));
+		assertEquals(new HashSet<>(Arrays.asList(path("a.war"))), this.changedWars);
+	}
+
+	@Test
+	public void deletesTheExpandedDirectoriesOfChangedWars() throws IOException {
+		write("webapps/a/index.html", "old a");
+		write("webapps/b/index.html", "old b");
+		write("webapps/b/stale.html", "stale");
+		write("webapps/c/index.html", "old c");
+
+		File jar = jar("a.war", war("a"), "b.war", war("b"),
+				Runner.ENTRY_HASHES_FILENAME, "1 a.war\n2 b.war\n");
+		Map<String, String> lastEntryHashes = hashes("a.war", "1", "b.war", "1",
+				"c.war", "1");
+
+		assertEquals(1, extract(jar, lastEntryHashes, true, false));
+
+		assertEquals("old a", read("webapps/a/index.html"));
+		assertEquals("b", read("webapps/b/index.html"));
+		assertFalse(Files.exists(this.extractDir.resolve("webapps/b/stale.html")));
+		assertFalse(Files.exists(this.extractDir.resolve("webapps/c")));
+		assertFalse(Files.exists(this.extractDir.resolve("b.war")));
+		assertEquals(new HashSet<>(Arrays.asList(path("b.war"))), this.changedWars);
+	}
+
+	@Test
+	public void leavesTheWarsOfTheSharedCacheToTheCaller() throws IOException {
+		File jar = jar("a.war", war("a"), "extra/x.txt", "x",
+				Runner.ENTRY_HASHES_FILENAME, "1 a.war\n1 extra/x.txt\n");
+
+		assertEquals(0, extract(jar, null, false, true));
+
+		assertFalse(Files.exists(this.extractDir.resolve("a.war")));
+		assertEquals("x", read("extra/x.txt"));
+		assertEquals(new HashSet<>(Arrays.asList(path("a.war"))), this.changedWars);
+	}
+
+	private int extract(File jar, Map<String, String> lastEntryHashes,
+			boolean expandWarsFromJar, boolean sharedCache) throws IOException {
+		ZipFile jarFile = new ZipFile(jar);
+		try (JarExtractor extractor = new JarExtractor(jarFile, 2)) {
+			int unchanged = Runner.extractEntries(jarFile, extractor, this.extractDir,
+					lastEntryHashes, expandWarsFromJar, sharedCache, this.changedWars);
+			extractor.await();
+			return unchanged;
+		}
+	}
+
+	private String path(String entryName) {
+		return this.extractDir.resolve(entryName).toAbsolutePath().toString();
+	}
+
+	private void write(String name, String content) throws IOException {
+		Path file = this.extractDir.resolve(name);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private String read(String name) throws IOException {
+		return new String(Files.readAllBytes(this.extractDir.resolve(name)),
+				StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, String> hashes(String... nameAndHash) {
+		Map<String, String> hashes = new HashMap<>();
+		for (int i = 0; i < nameAndHash.length; i += 2) {
+			hashes.put(nameAndHash[i], nameAndHash[i + 1]);
+		}
+		return hashes;
+	}
+
+	/**
+	 * Returns a WAR with an index.html that contains the content
+	 */
+	private static Object war(String content) throws IOException {
+		return zip("index.html", content);
+	}
+
+	/**
+	 * Writes a jar with the entries, given as pairs of name and content. The content
+	 * is a string or the bytes of a nested archive.
+	 */
+	private File jar(Object... nameAndContent) throws IOException {
+		File jar = this.folder.newFile();
+		try (FileOutputStream out = new FileOutputStream(jar)) {
+			out.write(zip(nameAndContent));
+		}
+		return jar;
+	}
+
+	private static byte[] zip(Object... nameAndContent) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+			for (int i = 0; i < nameAndContent.length; i += 2) {
+				zos.putNextEntry(new ZipEntry((String) nameAndContent[i]));
+				Object content = nameAndContent[i + 1];
+				zos.write(content instanceof byte[] ? (byte[]) content
+						: ((String) content).getBytes(StandardCharsets.UTF_8));
+				zos.closeEntry();
+			}
+		}
+		return bos.toByteArray();
+	}
+
+}
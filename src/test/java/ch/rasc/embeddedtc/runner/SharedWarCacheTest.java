@@ -0,0 +1,193 @@
+/**
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.runner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedWarCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path cacheDir;
+
+	@Before
+	public void setUp() throws IOException {
+		this.cacheDir = this.folder.getRoot().toPath().resolve("cache");
+	}
+
+	@Test
+	public void expandsWarsIntoDirectoriesNamedAfterTheirHash() throws IOException {
+		File jar = jar("a.war", war("a"), "extra/b.war", war("b"), "c.war", war("c"));
+		SharedWarCache cache = new SharedWarCache(this.cacheDir, 2);
+
+		Map<String, Path> warDirs = cache.populate(new ZipFile(jar),
+				hashes("a.war", "1", "extra/b.war", "2"));
+
+		assertEquals(Collections.singletonMap("a.war", this.cacheDir.resolve("1")),
+				warDirs);
+		assertEquals("a", read(this.cacheDir.resolve("1/index.html")));
+		assertEquals(1, cache.getExpandedCount());
+		assertEquals(Arrays.asList("1"), list());
+	}
+
+	@Test
+	public void reusesExpandedWars() throws IOException {
+		Files.createDirectories(this.cacheDir.resolve("1"));
+		File jar = jar("a.war", war("a"));
+		SharedWarCache cache = new SharedWarCache(this.cacheDir, 1);
+
+		Map<String, Path> warDirs = cache.populate(new ZipFile(jar),
+				hashes("a.war", "1"));
+
+		assertEquals(Collections.singletonMap("a.war", this.cacheDir.resolve("1")),
+				warDirs);
+		assertFalse(Files.exists(this.cacheDir.resolve("1/index.html")));
+		assertEquals(0, cache.getExpandedCount());
+	}
+
+	@Test
+	public void deletesTheCopyOfTheSecondExpansion() throws IOException {
+		// both WARs are expanded into temporary directories, only the first rename
+		// succeeds like with two runners that start at the same time
+		File jar = jar("a.war", war("a"), "b.war", war("b"));
+		SharedWarCache cache = new SharedWarCache(this.cacheDir, 2);
+
+		Map<String, Path> warDirs = cache.populate(new ZipFile(jar),
+				hashes("a.war", "1", "b.war", "1"));
+
+		assertEquals(this.cacheDir.resolve("1"), warDirs.get("a.war"));
+		assertEquals(this.cacheDir.resolve("1"), warDirs.get("b.war"));
+		assertEquals("a", read(this.cacheDir.resolve("1/index.html")));
+		assertEquals(1, cache.getExpandedCount());
+		assertEquals(Arrays.asList("1"), list());
+	}
+
+	@Test
+	public void deletesStaleTempDirectories() throws IOException {
+		long stale = System.currentTimeMillis()
+				- SharedWarCache.STALE_TEMP_DIRECTORY_AGE - 60_000;
+		Path staleTemp = createDirectory("1" + SharedWarCache.TEMP_SUFFIX + "123",
+				stale);
+		createDirectory("2" + SharedWarCache.TEMP_SUFFIX + "456",
+				System.currentTimeMillis());
+		createDirectory("3", stale);
+
+		File jar = jar("a.war", war("a"));
+		new SharedWarCache(this.cacheDir, 1).populate(new ZipFile(jar),
+				hashes("a.war", "3"));
+
+		assertFalse(Files.exists(staleTemp));
+		assertEquals(Arrays.asList("2" + SharedWarCache.TEMP_SUFFIX + "456", "3"),
+				list());
+		assertTrue(Files.exists(this.cacheDir.resolve("3/index.html")));
+	}
+
+	/**
+	 * Creates a directory in the cache with a file and sets the modification time of
+	 * the directory
+	 */
+	private Path createDirectory(String name, long lastModified) throws IOException {
+		Path dir = this.cacheDir.resolve(name);
+		Files.createDirectories(dir);
+		Files.write(dir.resolve("index.html"), "x".getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(dir, FileTime.fromMillis(lastModified));
+		return dir;
+	}
+
+	/**
+	 * Returns the sorted names in the cache directory
+	 */
+	private List<String> list() throws IOException {
+		List<String> names = new ArrayList<>();
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(this.cacheDir)) {
+			for (Path dir : dirs) {
+				names.add(dir.getFileName().toString());
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	private static String read(Path file) throws IOException {
+		return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, String> hashes(String... nameAndHash) {
+		Map<String, String> hashes = new LinkedHashMap<>();
+		for (int i = 0; i < nameAndHash.length; i += 2) {
+			hashes.put(nameAndHash[i], nameAndHash[i + 1]);
+		}
+		return hashes;
+	}
+
+	/**
+	 * Returns a WAR with an index.html that contains the content
+	 */
+	private static byte[] war(String content) throws IOException {
+		return zip("index.html", content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes a jar with the entries, given as pairs of name and content
+	 */
+	private File jar(Object... nameAndContent) throws IOException {
+		File jar = this.folder.newFile();
+		try (FileOutputStream out = new FileOutputStream(jar)) {
+			out.write(zip(nameAndContent));
+		}
+		return jar;
+	}
+
+	private static byte[] zip(Object... nameAndContent) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ZipOutputStream zos = new ZipOutputStream(bos)) {
+			for (int i = 0; i < nameAndContent.length; i += 2) {
+				zos.putNextEntry(new ZipEntry((String) nameAndContent[i]));
+				zos.write((byte[]) nameAndContent[i + 1]);
+				zos.closeEntry();
+			}
+		}
+		return bos.toByteArray();
+	}
+
+}